@@ -0,0 +1,75 @@
+package se.kb.libris.foliointegration;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe bloom filter over strings. It answers either "definitely not added" or "possibly added", and
+ * is used to avoid asking sqlite about things we can know we do not have.
+ *
+ * Things can only be added, never removed. Once more than the planned capacity has been added, the rate of false
+ * positives starts to climb, which the owner can detect with isOverfilled() and then build a new, larger filter.
+ */
+public class BloomFilter {
+    private static final int bitsPerEntry = 10;
+    private static final int hashCount = 7; // Optimal for 10 bits per entry, gives roughly 1% false positives.
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final long capacity;
+    private final AtomicLong insertions = new AtomicLong();
+
+    public BloomFilter(long capacity) {
+        this.capacity = capacity;
+        long words = (capacity * bitsPerEntry + 63) / 64;
+        this.bits = new AtomicLongArray((int) words);
+        this.bitCount = words * 64;
+    }
+
+    public void put(String s) {
+        long h1 = hash(s);
+        long h2 = mix(h1);
+        for (int i = 0; i < hashCount; ++i) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = bits.get(word);
+            while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+        insertions.incrementAndGet();
+    }
+
+    public boolean mightContain(String s) {
+        long h1 = hash(s);
+        long h2 = mix(h1);
+        for (int i = 0; i < hashCount; ++i) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public boolean isOverfilled() {
+        return insertions.get() > capacity;
+    }
+
+    // 64-bit FNV-1a over the UTF-16 chars of the string.
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); ++i) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // The splitmix64 finalizer, gives a second independent-enough hash for double hashing.
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return (h ^ (h >>> 31)) | 1; // odd, so that the probe sequence never degenerates
+    }
+}
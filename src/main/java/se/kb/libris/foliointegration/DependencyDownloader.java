@@ -0,0 +1,209 @@
+package se.kb.libris.foliointegration;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads the dependencies (linked entities, and theirs in turn) of records, for every thread, sharing the work.
+ *
+ * The same entity (an agent, a subject, a library) is typically referenced by many records on the same page, which
+ * are all having their dependencies downloaded at the same time. Every URI is therefore downloaded only once: The first
+ * caller to ask for it claims it (in the in-flight map), and gets the entity back to write. Anyone else asking for it
+ * meanwhile waits for that download instead, and gets nothing back for it, as it is already someone else's to write.
+ *
+ * Once downloaded, a URI is remembered as recently written, to bridge the time until it is actually written and
+ * committed (on the main thread, after which filterUrisWeAlreadyHave knows about it). This memory is short-lived: It
+ * is to be cleared at every commit, and by anything throwing away writes (a rollback). A deleted entity must be
+ * forgotten, so that it can be downloaded again.
+ *
+ * All downloads, whichever thread they are on, share a bounded number of concurrent requests. The caller gets the
+ * entities back to write itself, so writes stay wherever they were (on the main thread, in EMM order).
+ */
+public class DependencyDownloader {
+
+    private static final int maxConcurrentDownloads = 32;
+    private static final int maxRecentlyWritten = 100000;
+
+    private static final Semaphore downloadPermits = new Semaphore(maxConcurrentDownloads);
+    private static final ExecutorService fetchingThreads = Executors.newVirtualThreadPerTaskExecutor();
+    private static final ConcurrentHashMap<String, CompletableFuture<Map>> inFlight = new ConcurrentHashMap<>();
+    private static final Set<String> recentlyWritten = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > maxRecentlyWritten;
+        }
+    }));
+
+    // For the GUI
+    private static final AtomicLong downloads = new AtomicLong();
+    private static final AtomicLong duplicatesAvoided = new AtomicLong();
+
+    /**
+     * Download these URIs (which the caller has already checked that we do not have) and everything they reference
+     * that we do not have. Returns the entities that the caller must write, which are only those it was first to ask
+     * for.
+     *
+     * The references are followed breadth first: All URIs of one level are downloaded concurrently (on virtual
+     * threads, within the global limit), and what they reference, that we do not have, makes up the next level.
+     */
+    public static List<Map> download(Set<String> uris, Connection connection) {
+        var result = new ArrayList<Map>();
+        var claimed = new ArrayList<String>();
+        var fetches = new ArrayList<CompletableFuture<Map>>();
+
+        try {
+            Set<String> level = uris;
+            while (!level.isEmpty()) {
+                fetches.clear();
+                var othersFetches = new ArrayList<CompletableFuture<Map>>();
+                for (String uri : level) {
+                    if (recentlyWritten.contains(uri)) {
+                        duplicatesAvoided.incrementAndGet();
+                        continue;
+                    }
+
+                    CompletableFuture<Map> claim = new CompletableFuture<>();
+                    CompletableFuture<Map> existing = inFlight.putIfAbsent(uri, claim);
+                    if (existing != null) {
+                        // Someone else's to write. Wait for it (below), so that everything referenced is downloaded once we return.
+                        othersFetches.add(existing);
+                        duplicatesAvoided.incrementAndGet();
+                        continue;
+                    }
+                    if (recentlyWritten.contains(uri)) { // Finished between our check and our claim
+                        inFlight.remove(uri);
+                        claim.complete(null);
+                        duplicatesAvoided.incrementAndGet();
+                        continue;
+                    }
+
+                    claimed.add(uri);
+                    fetches.add(CompletableFuture.supplyAsync(() -> fetchClaimed(uri, claim), fetchingThreads));
+                }
+
+                Set<String> nextLevel = new HashSet<>();
+                for (CompletableFuture<Map> fetch : fetches) {
+                    Map mainEntity = fetch.join();
+                    if (mainEntity != null) {
+                        result.add(mainEntity);
+                        nextLevel.addAll( Records.collectUrisReferencedByThisRecord(mainEntity) );
+                    }
+                }
+                for (CompletableFuture<Map> fetch : othersFetches) {
+                    fetch.join();
+                }
+
+                try {
+                    Records.filterUrisWeAlreadyHave(nextLevel, connection);
+                } catch (SQLException se) {
+                    Storage.log("Failed to check for existence higher order dependencies.", se);
+                    break;
+                }
+                level = nextLevel;
+            }
+        } catch (RuntimeException | Error e) {
+            // Nothing we claimed will be returned, and so written. Once the downloads of this level have settled,
+            // let go of all of it, so that it is downloaded again when next asked for.
+            for (CompletableFuture<Map> fetch : fetches) {
+                try {
+                    fetch.join();
+                } catch (RuntimeException ignored) {
+                }
+            }
+            recentlyWritten.removeAll(claimed);
+            throw e;
+        }
+
+        return result;
+    }
+
+    /**
+     * Forget what has been downloaded. Must be called when writes are committed (filterUrisWeAlreadyHave takes over),
+     * and when they are rolled back, or downloaded entities are otherwise not written.
+     */
+    public static void forgetRecentlyWritten() {
+        recentlyWritten.clear();
+    }
+
+    /**
+     * Forget this URI (its entity has been deleted), so that it is downloaded again if referenced.
+     */
+    public static void forgetRecentlyWritten(String uri) {
+        recentlyWritten.remove(uri);
+    }
+
+    public static String describe() {
+        return downloads.get() + " dependencies downloaded, " + duplicatesAvoided.get() + " duplicate downloads avoided, " +
+                inFlight.size() + " in flight";
+    }
+
+    private static Map fetchClaimed(String uri, CompletableFuture<Map> claim) {
+        Map mainEntity = null;
+        try {
+            mainEntity = fetch(uri);
+        } finally {
+            // Recently written first, so that there is never a moment when the URI is in neither.
+            if (mainEntity != null)
+                recentlyWritten.add(uri);
+            inFlight.remove(uri);
+            claim.complete(mainEntity);
+        }
+        return mainEntity;
+    }
+
+    private static Map fetch(String uri) {
+        String downloadUri = uri;
+
+        // Don't reach to id.kb.se PROD even though that's what the links say. :( Kinda hacky!
+        String baseUrl = System.getenv("EMM_BASE_URL");
+        if ( uri.startsWith("https://id.kb.se") ) {
+            if (baseUrl.startsWith("https://libris-qa.kb.se"))
+                downloadUri = uri.replace("https://id.kb.se", "https://id-qa.kb.se");
+            else if (baseUrl.startsWith("https://libris-dev.kb.se"))
+                downloadUri = uri.replace("https://id.kb.se", "https://id-dev.kb.se");
+        }
+
+        String response;
+        try {
+            downloadPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            response = Records.downloadJsonLdWithRetry(downloadUri);
+            downloads.incrementAndGet();
+        } finally {
+            downloadPermits.release();
+        }
+
+        if (response == null) {
+            Storage.log("WARNING: Was unable to download a dependency: " + downloadUri + " which may now be missing in the synced data.");
+            return null;
+        }
+        try {
+            Map dependency = Storage.mapper.readValue(response, Map.class);
+            if (dependency.containsKey("@graph")) {
+                List<Map> graphList = (List<Map>) dependency.get("@graph");
+
+                Map recordEntity = graphList.get(0);
+                Map mainEntity = graphList.get(1);
+                if (recordEntity.containsKey("controlNumber")) {
+                    mainEntity.put( "meta", recordEntity );
+                }
+                return mainEntity;
+            }
+        } catch (IOException ioe) {
+            Storage.log("Could not handle expected JSON from: " + downloadUri + " [which looks like]: " + response, ioe);
+        }
+        return null;
+    }
+}
@@ -1,161 +1,215 @@
 package se.kb.libris.foliointegration;
 
 import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.config.RequestConfig;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.core5.http.ClassicHttpResponse;
-import org.apache.hc.core5.http.ParseException;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
-import org.apache.hc.core5.util.TimeValue;
-import org.apache.hc.core5.util.Timeout;
 
 import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.time.ZonedDateTime;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * The initial load from Libris: downloading the EMM dumps of all our sigels.
+ *
+ * The dumps are downloaded concurrently, each with its own EmmPageFetcher and its own progress in the state table
+ * (the keys below, suffixed with the sigel, see stateKey). Pages are written (on the main thread, as all writes)
+ * whichever dump they come from, as soon as they are available. Once every dump has been downloaded, the database
+ * leaves bulk load mode and the application moves on to staying in sync.
+ */
 public class EmmDumpImport {
 
     public final static String OFFSET_KEY = "EMMDumpStateOffset";
     public final static String TOTALITEMS_KEY = "EMMDumpStateTotalItems";
     public final static String DUMP_ID_KEY = "EMMDumpStateCreationTime";
-    public final static String DUMP_SIGEL_KEY = "EMMDumpStateSigel";
-    private final static int maxThreads = 8;
+    public final static String COMPLETED_KEY = "EMMDumpStateCompleted";
 
-    final static ConcurrentHashMap<String, Map<String, ?>> prefetchedPages = new ConcurrentHashMap<>();
-    static String sigel;
+    // Older versions downloaded one dump at a time, this sigel's, keeping its progress in the keys above without suffix.
+    private final static String LEGACY_DUMP_SIGEL_KEY = "EMMDumpStateSigel";
 
-    public static void run() throws Exception{
-        Connection connection = Storage.getConnection();
-        sigel = Storage.getState(DUMP_SIGEL_KEY, connection);
-        if (sigel == null) {
-            sigel = System.getenv("SIGEL").split(",")[0];
-            Storage.writeState(DUMP_SIGEL_KEY, sigel, connection);
-            connection.commit();
-        }
+    private final static int pagesPerTransaction = 20;
+
+    private final static List<String> SIGEL_LIST = Arrays.asList( System.getenv("SIGEL").split(",") );
 
-        startIfNotStarted();
+    private static final class Dump {
+        final String sigel;
+        final String dumpId;
+        final EmmPageFetcher fetcher;
+        long offset;
 
-        String offset;
-        String dumpId;
-        // Set initial offset if needed
-        offset = Storage.getState(OFFSET_KEY, connection);
-        if (offset == null) {
-            Storage.writeState(OFFSET_KEY, "" + 1, connection); // 1 to skip initial context bs.
+        Dump(String sigel, String dumpId, long offset) {
+            this.sigel = sigel;
+            this.dumpId = dumpId;
+            this.offset = offset;
+            this.fetcher = new EmmPageFetcher(pageOffset -> getPageUri(sigel, pageOffset));
         }
+    }
+
+    public static String stateKey(String key, String sigel) {
+        return key + ":" + sigel;
+    }
 
-        offset = Storage.getState(OFFSET_KEY, connection);
-        dumpId = Storage.getState(DUMP_ID_KEY, connection);
+    public static void run() throws Exception{
+        Connection connection = Storage.getConnection();
+        Storage.enterBulkLoadMode(connection);
+        migrateLegacyState(connection);
+
+        List<Dump> dumps = new ArrayList<>();
+        for (String sigel : SIGEL_LIST) {
+            if (Storage.getState(stateKey(COMPLETED_KEY, sigel), connection) != null)
+                continue;
+
+            startIfNotStarted(sigel);
+            String dumpId = Storage.getState(stateKey(DUMP_ID_KEY, sigel), connection);
+            if (dumpId == null)
+                continue; // Could not be started, will be tried again
+            String offset = Storage.getState(stateKey(OFFSET_KEY, sigel), connection);
+            dumps.add(new Dump(sigel, dumpId, offset == null ? 1 : Long.parseLong(offset))); // 1 to skip initial context bs.
+        }
         connection.commit();
 
         try {
-            URI uri = new URI(System.getenv("EMM_BASE_URL")).resolve("full?selection=itemAndInstance:" + sigel + "&offset=" + offset + "&computedLabel=sv");
-            while (uri != null) {
-                Map<String, ?> responseMap = getPage(Integer.parseInt(offset));
-
-                if (responseMap.containsKey("next")) {
-                    uri = new URI( (String) responseMap.get("next") );
-                } else {
-                    uri = null;
-                }
+            for (Dump dump : dumps) {
+                dump.fetcher.prefetch(dump.offset);
+            }
+
+            int uncommittedPages = 0;
+            int next = 0;
+            while (!dumps.isEmpty()) {
+                Dump dump = pickDump(dumps, next);
+                next = dumps.indexOf(dump) + 1;
+                Map<String, ?> responseMap = dump.fetcher.getPage(dump.offset);
 
                 if (responseMap.containsKey("startTime")) {
-                    if (!dumpId.equals( responseMap.get("startTime") )) {
+                    if (!dump.dumpId.equals( responseMap.get("startTime") )) {
                         return; // This will result in a restart (now that the timestamp has changed)
                     }
                 }
 
                 if (responseMap.containsKey("items")) {
                     List<?> items = (List<?>) responseMap.get("items");
-                    offset = "" + (Integer.parseInt(offset) + items.size());
-
-                    // Do dependency downloads (not writes!) concurrently
-                    var dependencies = Collections.synchronizedList(new ArrayList<Map>());
-                    var threads = new ArrayList<Thread>(100);
-                    for (Object item : items) {
-                        Map<String, Object> itemMap = (Map<String, Object>) item;
-                        List<?> graphList = (List<?>) itemMap.get("@graph");
-
-                        Set<String> dependenciesToDownload = Records.collectUrisReferencedByThisRecord(graphList.get(1));
-
-                        // We need the record part
-                        Map recordEntity = (Map) graphList.get(0);
-                        Map mainEntity = (Map) graphList.get(1);
-                        Map itemOf = (Map) mainEntity.get("itemOf");
-                        mainEntity.put( "meta", recordEntity );
-
-                        // We do NOT want to download the instance again, even though it is referenced. We have it already.
-                        String instanceUri = (String) itemOf.get("@id");
-                        String itemUri = (String) mainEntity.get("@id");
-                        dependenciesToDownload.remove(instanceUri);
-                        dependenciesToDownload.remove(itemUri);
-
-                        Records.filterUrisWeAlreadyHave(dependenciesToDownload, connection);
-
-                        //dependencies.addAll(Records.downloadDependencies(dependenciesToDownload));
-                        Thread t = Thread.startVirtualThread(() -> dependencies.addAll(Records.downloadDependencies(dependenciesToDownload, new HashSet<>(), connection)));
-                        threads.add(t);
-                    }
-
-                    // Write record and dependencies
-                    for (Object item : items) {
-                        Map<String, Object> itemMap = (Map<String, Object>) item;
-                        if (itemMap.containsKey("@graph")) {
-                            List<Map<String,?>> graphList = (List<Map<String,?>>) itemMap.get("@graph");
-
-                            // We take dumps in the "itemAndInstance" category, which means we get holding records
-                            // with embedded instances. We don't want them embedded, we want them separate. So separate
-                            // them into two distinct records again before writing (one Item-record and one Instance-record).
-                            Map mainEntity = graphList.get(1);
-                            Map itemOf = (Map) mainEntity.get("itemOf");
-                            String instanceUri = (String) itemOf.get("@id");
-                            mainEntity.put("itemOf", Map.of("@id", instanceUri));
-
-                            Records.writeRecord(mainEntity, connection);
-                            Records.writeRecord(itemOf, connection);
-                        }
-                    }
-
-                    // All dependency downloads must conclude before they can be written.
-                    for (Thread t : threads) {
-                        t.join();
-                    }
+                    writePage(items, connection);
+                    dump.offset += items.size();
 
-                    for (Map dependency : dependencies) {
-                        Records.writeRecord(dependency, connection);
-                    }
-
-                    Storage.writeState(OFFSET_KEY, offset, connection);
+                    Storage.writeState(stateKey(OFFSET_KEY, dump.sigel), "" + dump.offset, connection);
                     if (responseMap.containsKey("totalItems")) {
                         Integer totalItems = (Integer) responseMap.get("totalItems");
-                        Storage.writeState(TOTALITEMS_KEY, ""+totalItems, connection);
+                        Storage.writeState(stateKey(TOTALITEMS_KEY, dump.sigel), ""+totalItems, connection);
                     }
 
-                    connection.commit(); // The record writes AND our new consumed offset together
+                    // The record writes AND our new consumed offset together. Several pages go in each transaction,
+                    // but as every page writes its offset, any commit point is a consistent one.
+                    if (++uncommittedPages >= pagesPerTransaction) {
+                        connection.commit();
+                        DependencyDownloader.forgetRecentlyWritten(); // Committed, filterUrisWeAlreadyHave knows about them now
+                        uncommittedPages = 0;
+                    }
+                }
 
+                // No 'next' page means this dump download is finished.
+                if (!responseMap.containsKey("next")) {
+                    finalizeDumpDownload(dump, connection);
+                    DependencyDownloader.forgetRecentlyWritten();
+                    uncommittedPages = 0;
+                    dumps.remove(dump);
                 }
             }
+            connection.commit();
+            DependencyDownloader.forgetRecentlyWritten();
 
-            // If/when we get here, the 'next' uri is null, meaning the dump download is finished.
-            finalizeDumpDownload();
+            boolean allCompleted = true;
+            for (String sigel : SIGEL_LIST) {
+                allCompleted &= Storage.getState(stateKey(COMPLETED_KEY, sigel), connection) != null;
+            }
+            if (allCompleted)
+                finalizeInitialLoad(connection);
 
-        } catch (URISyntaxException | SQLException e) {
+        } catch (SQLException | IOException e) {
+            DependencyDownloader.forgetRecentlyWritten(); // Whatever was downloaded for the failed page was not written
             Storage.log("Page download failed (will be retried).", e);
+        } finally {
+            for (Dump dump : dumps) {
+                dump.fetcher.close();
+            }
         }
 
     }
 
-    private static void finalizeDumpDownload() {
-        Storage.log("EMM dump download complete, for sigel: " + sigel);
+    /**
+     * The next dump to take a page from: The first (round robin from next) that has its page downloaded already, or
+     * failing that, the one at next, to wait for.
+     */
+    private static Dump pickDump(List<Dump> dumps, int next) {
+        for (int i = 0; i < dumps.size(); ++i) {
+            Dump dump = dumps.get((next + i) % dumps.size());
+            if (dump.fetcher.hasPage(dump.offset))
+                return dump;
+        }
+        return dumps.get(next % dumps.size());
+    }
 
-        try {
-            Connection connection = Storage.getConnection();
+    private static void writePage(List<?> items, Connection connection) throws SQLException, IOException, InterruptedException {
+        // Do dependency downloads (not writes!) concurrently
+        var dependencies = Collections.synchronizedList(new ArrayList<Map>());
+        var threads = new ArrayList<Thread>(100);
+        for (Object item : items) {
+            Map<String, Object> itemMap = (Map<String, Object>) item;
+            List<?> graphList = (List<?>) itemMap.get("@graph");
+
+            Set<String> dependenciesToDownload = Records.collectUrisReferencedByThisRecord(graphList.get(1));
+
+            // We need the record part
+            Map recordEntity = (Map) graphList.get(0);
+            Map mainEntity = (Map) graphList.get(1);
+            Map itemOf = (Map) mainEntity.get("itemOf");
+            mainEntity.put( "meta", recordEntity );
+
+            // We do NOT want to download the instance again, even though it is referenced. We have it already.
+            String instanceUri = (String) itemOf.get("@id");
+            String itemUri = (String) mainEntity.get("@id");
+            dependenciesToDownload.remove(instanceUri);
+            dependenciesToDownload.remove(itemUri);
+
+            Records.filterUrisWeAlreadyHave(dependenciesToDownload, connection);
+
+            Thread t = Thread.startVirtualThread(() -> dependencies.addAll(DependencyDownloader.download(dependenciesToDownload, connection)));
+            threads.add(t);
+        }
+
+        // Write record and dependencies
+        for (Object item : items) {
+            Map<String, Object> itemMap = (Map<String, Object>) item;
+            if (itemMap.containsKey("@graph")) {
+                List<Map<String,?>> graphList = (List<Map<String,?>>) itemMap.get("@graph");
+
+                // We take dumps in the "itemAndInstance" category, which means we get holding records
+                // with embedded instances. We don't want them embedded, we want them separate. So separate
+                // them into two distinct records again before writing (one Item-record and one Instance-record).
+                Map mainEntity = graphList.get(1);
+                Map itemOf = (Map) mainEntity.get("itemOf");
+                String instanceUri = (String) itemOf.get("@id");
+                mainEntity.put("itemOf", Map.of("@id", instanceUri));
+
+                Records.writeRecord(mainEntity, connection);
+                Records.writeRecord(itemOf, connection);
+            }
+        }
+
+        // All dependency downloads must conclude before they can be written.
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        for (Map dependency : dependencies) {
+            Records.writeRecord(dependency, connection);
+        }
+    }
+
+    private static void finalizeDumpDownload(Dump dump, Connection connection) {
+        Storage.log("EMM dump download complete, for sigel: " + dump.sigel);
 
+        try {
             // Set initial time for sync catch-up
             String forcedSyncTime = System.getenv("INITIAL_LIBRIS_SYNC_TIME");
             if (forcedSyncTime != null) {
@@ -165,7 +219,7 @@ public class EmmDumpImport {
                 Storage.log("EMM Sync-from time is now set to: " + forcedMillis + " (" + forcedSyncTime + "). This was FORCED through the use of the INITIAL_LIBRIS_SYNC_TIME parameter.");
             } else {
                 // Default, use the dump generation date(s).
-                ZonedDateTime dumpCreationTime = ZonedDateTime.parse(Storage.getState(DUMP_ID_KEY, connection));
+                ZonedDateTime dumpCreationTime = ZonedDateTime.parse(dump.dumpId);
                 long candidateUntil = dumpCreationTime.toInstant().toEpochMilli();
                 long preExistingUntil = 33305941930000L; // assumption, *far* future. (Instant.MAX overflows unfortunately)
                 String preExistingUntilString = Storage.getState(EmmSync.SYNCED_UNTIL_KEY, connection);
@@ -178,30 +232,28 @@ public class EmmDumpImport {
                 }
             }
 
-            Storage.clearState(OFFSET_KEY, connection);
-            Storage.clearState(TOTALITEMS_KEY, connection);
-            Storage.clearState(DUMP_ID_KEY, connection);
-
-            // If there are more dumps to download, set starting conditions for the next one.
-            String[] sigelList = System.getenv("SIGEL").split(",");
-            int currentSigelIndex = 0;
-            for (int i = 0; i < sigelList.length; ++i) {
-                if (sigel.equals(sigelList[i])) {
-                    currentSigelIndex = i;
-                    break;
-                }
-            }
-            if (currentSigelIndex < sigelList.length - 1) {
-                sigel = sigelList[currentSigelIndex + 1];
+            Storage.clearState(stateKey(OFFSET_KEY, dump.sigel), connection);
+            Storage.clearState(stateKey(TOTALITEMS_KEY, dump.sigel), connection);
+            Storage.clearState(stateKey(DUMP_ID_KEY, dump.sigel), connection);
+            Storage.writeState(stateKey(COMPLETED_KEY, dump.sigel), dump.dumpId, connection);
+            connection.commit();
+        } catch (SQLException e) {
+            Storage.log("Dump finalization failed. Fatal.", e);
+            System.exit(1);
+        }
+    }
 
-                Storage.writeState(DUMP_SIGEL_KEY, sigel, connection);
-            } else {
-                Storage.clearState(DUMP_SIGEL_KEY, connection);
-                Storage.writeState(FolioSync.SYNCED_UNTIL_KEY, "0", connection);
-                Storage.transitionToApplicationState(Storage.APPLICATION_STATE.STAYING_IN_SYNC, connection);
+    private static void finalizeInitialLoad(Connection connection) {
+        try {
+            for (String sigel : SIGEL_LIST) {
+                Storage.clearState(stateKey(COMPLETED_KEY, sigel), connection);
             }
+            Storage.writeState(FolioSync.SYNCED_UNTIL_KEY, "0", connection);
+            Storage.rebuildAfterBulkLoad(connection);
+            Storage.transitionToApplicationState(Storage.APPLICATION_STATE.STAYING_IN_SYNC, connection);
 
             connection.commit();
+            Storage.leaveBulkLoadMode(connection);
         } catch (SQLException e) {
             Storage.log("Dump finalization failed. Fatal.", e);
             System.exit(1);
@@ -209,110 +261,77 @@ public class EmmDumpImport {
     }
 
     /**
-     * Call only from the main thread, or risk a race condition.
+     * Move the progress of a dump download started by an older version into the per-sigel keys. The sigels before it
+     * in the list were completed by then.
      */
-    private static void prefetchPage(int offset) {
-        try {
-            URI uri = new URI(System.getenv("EMM_BASE_URL")).resolve("full?selection=itemAndInstance:" + sigel + "&offset=" + offset + "&computedLabel=sv");
-
-            // Place an empty map with this key when starting. This will be a signal that the page is already being
-            // downloaded, and should be waited for rather than re-downloaded.
-            if (prefetchedPages.containsKey(uri.toString()))
-                return;
-            prefetchedPages.put(uri.toString(), new HashMap<>());
-
-            Thread.ofPlatform().name("EMM prefetch").start(new Runnable() {
-                public void run() {
-                    try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-                        HttpGet request = new HttpGet(uri);
-                        RequestConfig config = RequestConfig.custom()
-                                .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-
-                        request.setConfig(config);
-                        request.setHeader("accept", "application/json+ld");
-                        httpClient.execute(request, response -> {
-                            String bodyAsString = EntityUtils.toString(response.getEntity());
-                            prefetchedPages.put( uri.toString(), Storage.mapper.readValue(bodyAsString, Map.class) );
-                            return response;
-                        });
-                    } catch (IOException e) {
-                        try {
-                            Thread.sleep(100);
-                        } catch (InterruptedException e2) {
-                            // ignore
-                        }
-                    } catch (Exception e) {
-                        Storage.log("Unexpected problem downloading EMM page. ", e);
-                        try {
-                            Thread.sleep(100);
-                        } catch (InterruptedException e2) {
-                            // ignore
-                        }
-                    }
-                }
-            });
-
-        } catch (URISyntaxException e) {
-            Storage.log("Page prefetch failed.", e);
+    private static void migrateLegacyState(Connection connection) throws SQLException {
+        String legacySigel = Storage.getState(LEGACY_DUMP_SIGEL_KEY, connection);
+        if (legacySigel == null)
+            return;
+
+        for (String sigel : SIGEL_LIST) {
+            if (sigel.equals(legacySigel))
+                break;
+            Storage.writeState(stateKey(COMPLETED_KEY, sigel), "", connection);
         }
-    }
-
-    private static Map<String, ?> getPage(int offset) {
-        // Start prefetching of subsequent pages, if not already on the way:
-        for (int i = 0; i < maxThreads; ++i) {
-            prefetchPage(offset + 100 * i); // That the dump page size is 100 is an assumption, which MUST hold true for this to work correctly.
+        for (String key : List.of(OFFSET_KEY, TOTALITEMS_KEY, DUMP_ID_KEY)) {
+            String value = Storage.getState(key, connection);
+            if (value != null)
+                Storage.writeState(stateKey(key, legacySigel), value, connection);
+            Storage.clearState(key, connection);
         }
+        Storage.clearState(LEGACY_DUMP_SIGEL_KEY, connection);
+        connection.commit();
+        Storage.log("Dump download state upgraded, continuing the download for sigel: " + legacySigel + " (and starting any others).");
+    }
 
-        try {
-            URI uri = new URI(System.getenv("EMM_BASE_URL")).resolve("full?selection=itemAndInstance:" + sigel + "&offset=" + offset + "&computedLabel=sv");
-
-            var emptyMap = new HashMap<>();
-            var page = prefetchedPages.get(uri.toString());
-            while (page == null || page.equals(emptyMap)) {
-                Thread.sleep(1);
-                page = prefetchedPages.get(uri.toString());
-            }
-            prefetchedPages.remove(uri.toString());
-            return page;
+    /**
+     * How far along the dump download for this sigel is, in percent.
+     */
+    public static int getProgressPercent(String sigel, Connection connection) {
+        if (Storage.getState(stateKey(COMPLETED_KEY, sigel), connection) != null)
+            return 100;
+        String totalItemsString = Storage.getState(stateKey(TOTALITEMS_KEY, sigel), connection);
+        String offsetString = Storage.getState(stateKey(OFFSET_KEY, sigel), connection);
+        if (totalItemsString == null || offsetString == null)
+            return 0;
+        return (int) (100.0f * Long.parseLong(offsetString) / Long.parseLong(totalItemsString));
+    }
 
-        } catch (URISyntaxException | InterruptedException e) {
-            Storage.log("Page download failed (will be retried).", e);
-        }
-        return null;
+    private static URI getPageUri(String sigel, long offset) {
+        return URI.create(System.getenv("EMM_BASE_URL")).resolve("full?selection=itemAndInstance:" + sigel + "&offset=" + offset + "&computedLabel=sv");
     }
 
-    private static void startIfNotStarted() throws SQLException{
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-            URI uri = new URI(System.getenv("EMM_BASE_URL")).resolve("full?selection=itemAndInstance:" + sigel + "&offset=0&computedLabel=sv");
+    private static void startIfNotStarted(String sigel) throws SQLException {
+        try {
+            URI uri = getPageUri(sigel, 0);
             HttpGet request = new HttpGet(uri);
-            RequestConfig config = RequestConfig.custom()
-                    .setConnectionRequestTimeout(Timeout.ofSeconds(15)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-            request.setConfig(config);
             request.setHeader("accept", "application/json+ld");
-            ClassicHttpResponse response = httpClient.execute(request);
-            String responseText = EntityUtils.toString(response.getEntity());
-
-            Map<?, ?> responseMap = Storage.mapper.readValue(responseText, Map.class);
+            Map<?, ?> responseMap;
+            try (ClassicHttpResponse response = Http.getClient().execute(request);
+                 EmmPageReader page = new EmmPageReader(response.getEntity().getContent(), "items")) {
+                responseMap = page.getProperties(); // Only the start time is of interest here, not the items
+            }
 
             if (responseMap.containsKey("startTime")) {
                 String startTime = (String) responseMap.get("startTime");
                 ZonedDateTime.parse(startTime); // parses correctly or throws
 
                 Connection connection = Storage.getConnection();
-                String dumpId = Storage.getState(DUMP_ID_KEY, connection);
+                String dumpId = Storage.getState(stateKey(DUMP_ID_KEY, sigel), connection);
                 if (dumpId == null) { // This means no dump download is in progress. Time to start.
                     Storage.log("Starting download of EMM dump (sigel: " + sigel + ") with creation time: " + startTime);
-                    Storage.clearState(OFFSET_KEY, connection);
-                    Storage.writeState(DUMP_ID_KEY, startTime, connection);
+                    Storage.clearState(stateKey(OFFSET_KEY, sigel), connection);
+                    Storage.writeState(stateKey(DUMP_ID_KEY, sigel), startTime, connection);
                 } else if (!dumpId.equals(startTime)) {
                     Storage.log("EMM dump is now stale, a restart is necessary. Will now download dump with creation time: " + startTime);
-                    Storage.clearState(OFFSET_KEY, connection);
-                    Storage.writeState(DUMP_ID_KEY, startTime, connection);
+                    Storage.clearState(stateKey(OFFSET_KEY, sigel), connection);
+                    Storage.writeState(stateKey(DUMP_ID_KEY, sigel), startTime, connection);
                 }
                 connection.commit();
             }
 
-        } catch (URISyntaxException | IOException | ParseException e) {
+        } catch (IOException e) {
             Storage.log("Failed to start dump download.", e);
         }
     }
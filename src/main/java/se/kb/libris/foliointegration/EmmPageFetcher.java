@@ -0,0 +1,195 @@
+package se.kb.libris.foliointegration;
+
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * Downloads the pages of an EMM dump ahead of their use, so that the import does not sit waiting for them.
+ *
+ * Pages are fetched by offset on threads of their own, and handed out in order by getPage. The offsets of upcoming
+ * pages are guessed from the size of the (full) pages seen so far. A wrong guess only means that the page asked for is
+ * not the one fetched, which is then thrown away and the right one fetched instead.
+ *
+ * How many pages to fetch ahead follows the ratio between the time it takes to download a page and the time it takes
+ * the import to consume one, within [1, maxDepth]. Fetching never gets further ahead than that, which also bounds the
+ * memory held by pages not yet consumed. Every download is retried a few times before getPage gives up and throws.
+ *
+ * When several dumps are downloaded at once, each has its own fetcher, all sharing the same pool of download threads.
+ *
+ * Not thread safe, an instance is to be used by the main thread only.
+ */
+public class EmmPageFetcher {
+
+    private record FetchedPage(Map<String, ?> page, long downloadNanos) {}
+    private record Pending(long offset, Future<FetchedPage> page) {}
+
+    private final static int maxDepth = 8;
+    private final static int maxAttempts = 5;
+    private final static int poolSize = 2 * maxDepth;
+    private final static ExecutorService fetchingPool = Executors.newFixedThreadPool(poolSize, Thread.ofPlatform().name("EMM prefetch-", 0).daemon().factory());
+
+    // For the GUI (summed over all fetchers, the depth is that of the fetcher last handed a page out)
+    private final static AtomicLong pagesDownloaded = new AtomicLong();
+    private final static AtomicLong retries = new AtomicLong();
+    private final static AtomicLong pagesDiscarded = new AtomicLong();
+    private final static AtomicLong downloadNanos = new AtomicLong();
+    private final static AtomicLong waitNanos = new AtomicLong();
+    private static volatile int currentDepth = 0;
+
+    private final LongFunction<URI> pageUri;
+    private final ArrayDeque<Pending> inFlight = new ArrayDeque<>();
+    private int pageSize = 0; // As observed, 0 until a full page has been seen
+    private int depth = 1;
+    private double averageDownloadNanos = 0;
+    private double averageConsumeNanos = 0;
+    private long lastHandedOutNanos = 0;
+
+    public EmmPageFetcher(LongFunction<URI> pageUri) {
+        this.pageUri = pageUri;
+    }
+
+    /**
+     * Start downloading the page at this offset, without waiting for it. Does nothing if it is already on its way.
+     */
+    public void prefetch(long offset) {
+        if (inFlight.isEmpty() || inFlight.peekFirst().offset != offset) {
+            close();
+            inFlight.add(submit(offset));
+        }
+    }
+
+    /**
+     * Whether the page at this offset is downloaded (or has failed to), so that getPage would not have to wait for it.
+     */
+    public boolean hasPage(long offset) {
+        return !inFlight.isEmpty() && inFlight.peekFirst().offset == offset && inFlight.peekFirst().page.isDone();
+    }
+
+    /**
+     * The page at this offset, waiting for it if it is not yet downloaded. Throws if it could not be downloaded.
+     */
+    public Map<String, ?> getPage(long offset) throws IOException, InterruptedException {
+        // Anything queued ahead of the page we want is of no use (a wrong guess, or the caller has started over).
+        while (!inFlight.isEmpty() && inFlight.peekFirst().offset != offset) {
+            discard(inFlight.removeFirst());
+        }
+        if (inFlight.isEmpty())
+            inFlight.add(submit(offset));
+
+        long waitStart = System.nanoTime();
+        FetchedPage fetched;
+        try {
+            fetched = inFlight.removeFirst().page.get();
+        } catch (ExecutionException e) {
+            close();
+            throw new IOException("Could not download EMM dump page: " + pageUri.apply(offset), e.getCause());
+        }
+        long now = System.nanoTime();
+        waitNanos.addAndGet(now - waitStart);
+
+        averageDownloadNanos = average(averageDownloadNanos, fetched.downloadNanos);
+        if (lastHandedOutNanos != 0)
+            averageConsumeNanos = average(averageConsumeNanos, waitStart - lastHandedOutNanos);
+        lastHandedOutNanos = now;
+        depth = (int) Math.max(1, Math.min(maxDepth, Math.ceil(averageDownloadNanos / Math.max(1.0, averageConsumeNanos)) + 1));
+        currentDepth = depth;
+
+        Map<String, ?> page = fetched.page;
+        if (!page.containsKey("next") || !(page.get("items") instanceof List<?> items)) {
+            close(); // The last page
+            return page;
+        }
+        if (!items.isEmpty())
+            pageSize = items.size();
+
+        // Fetch the following pages, now that we know for sure where the next one starts.
+        long nextOffset = offset + items.size();
+        if (!inFlight.isEmpty() && inFlight.peekFirst().offset != nextOffset) {
+            close();
+        }
+        if (pageSize > 0) {
+            long toSubmit = inFlight.isEmpty() ? nextOffset : inFlight.peekLast().offset + pageSize;
+            while (inFlight.size() < depth) {
+                inFlight.add(submit(toSubmit));
+                toSubmit += pageSize;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Stop fetching ahead, throwing away anything not yet handed out.
+     */
+    public void close() {
+        while (!inFlight.isEmpty()) {
+            discard(inFlight.removeFirst());
+        }
+    }
+
+    public static String describe() {
+        return pagesDownloaded.get() + " EMM dump pages downloaded (" + retries.get() + " retries, " + pagesDiscarded.get() + " discarded), " +
+                (downloadNanos.get() / 1_000_000_000L) + " s spent downloading, " + (waitNanos.get() / 1_000_000_000L) +
+                " s spent waiting for downloads, fetching " + currentDepth + " pages ahead";
+    }
+
+    private Pending submit(long offset) {
+        URI uri = pageUri.apply(offset);
+        return new Pending(offset, fetchingPool.submit(() -> download(uri)));
+    }
+
+    private static void discard(Pending pending) {
+        pending.page.cancel(true);
+        pagesDiscarded.incrementAndGet();
+    }
+
+    private static FetchedPage download(URI uri) throws IOException, InterruptedException {
+        for (int attempt = 1; ; ++attempt) {
+            long start = System.nanoTime();
+            try {
+                HttpGet request = new HttpGet(uri);
+                request.setHeader("accept", "application/json+ld");
+                Map<String, Object> page;
+                try (ClassicHttpResponse response = Http.getClient().execute(request)) {
+                    if (response.getCode() != 200)
+                        throw new IOException("Unexpected response code " + response.getCode());
+                    try (EmmPageReader reader = new EmmPageReader(response.getEntity().getContent(), "items")) {
+                        List<Map<String, ?>> items = new ArrayList<>();
+                        for (Map<String, ?> item = reader.nextItem(); item != null; item = reader.nextItem()) {
+                            items.add(item);
+                        }
+                        page = reader.getProperties();
+                        page.put("items", items);
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                pagesDownloaded.incrementAndGet();
+                downloadNanos.addAndGet(elapsed);
+                return new FetchedPage(page, elapsed);
+            } catch (IOException e) {
+                if (attempt >= maxAttempts)
+                    throw e;
+                retries.incrementAndGet();
+                Storage.log("Failed to download EMM dump page (attempt " + attempt + ", will be retried): " + uri + " " + e);
+                Thread.sleep(1000L * attempt);
+            }
+        }
+    }
+
+    // Exponentially weighted, so that it follows changes in conditions
+    private static double average(double average, long sample) {
+        return average == 0 ? sample : 0.8 * average + 0.2 * sample;
+    }
+}
@@ -0,0 +1,87 @@
+package se.kb.libris.foliointegration;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads an EMM page (a page of a dump, or of the activity stream) straight off the response stream, one item at a
+ * time, so that a page never needs to be held in memory as a whole (not as text, nor parsed), and the items can be
+ * dealt with while the rest of the page is still arriving.
+ *
+ * The items are the elements of the array property named by the caller ("items" or "orderedItems"). All other
+ * properties of the page are kept as they are passed, see getProperties.
+ */
+public class EmmPageReader implements Closeable {
+
+    private final JsonParser parser;
+    private final String itemsProperty;
+    private final Map<String, Object> properties = new LinkedHashMap<>();
+    private boolean inItems = false;
+    private boolean done = false;
+
+    public EmmPageReader(InputStream stream, String itemsProperty) throws IOException {
+        this.parser = Storage.mapper.createParser(stream);
+        this.itemsProperty = itemsProperty;
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+            throw new IOException("Unexpected EMM page, not a JSON object.");
+    }
+
+    /**
+     * The next item of the page, or null if there are no more.
+     */
+    public Map<String, ?> nextItem() throws IOException {
+        while (true) {
+            if (inItems) {
+                if (nextToken() != JsonToken.END_ARRAY)
+                    return Storage.mapper.readValue(parser, Map.class);
+                inItems = false;
+            }
+            if (done)
+                return null;
+            if (nextToken() == JsonToken.END_OBJECT) {
+                done = true;
+                return null;
+            }
+            String property = parser.currentName();
+            if (nextToken() == JsonToken.START_ARRAY && property.equals(itemsProperty))
+                inItems = true;
+            else
+                properties.put(property, Storage.mapper.readValue(parser, Object.class));
+        }
+    }
+
+    /**
+     * All properties of the page, other than the items. Any items not yet read are skipped over (without being parsed
+     * into anything).
+     */
+    public Map<String, Object> getProperties() throws IOException {
+        while (!done) {
+            if (inItems) {
+                while (nextToken() != JsonToken.END_ARRAY) {
+                    parser.skipChildren();
+                }
+                inItems = false;
+            }
+            nextItem();
+        }
+        return properties;
+    }
+
+    private JsonToken nextToken() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null)
+            throw new IOException("Unexpected end of EMM page.");
+        return token;
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
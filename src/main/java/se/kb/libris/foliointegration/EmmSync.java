@@ -1,14 +1,7 @@
 package se.kb.libris.foliointegration;
 
 import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.config.RequestConfig;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.core5.http.ClassicHttpResponse;
-import org.apache.hc.core5.http.ParseException;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
-import org.apache.hc.core5.util.TimeValue;
-import org.apache.hc.core5.util.Timeout;
 
 import java.io.IOException;
 import java.net.URI;
@@ -42,45 +35,45 @@ public class EmmSync {
             newUntilTarget = now;
 
         URI uri = null;
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+        try {
             uri = new URI(System.getenv("EMM_BASE_URL")).resolve("?until=" + newUntilTarget);
             boolean foundAlreadyTakenChange = false;
             while (uri != null) {
 
                 HttpGet request = new HttpGet(uri);
-                RequestConfig config = RequestConfig.custom()
-                        .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-                request.setConfig(config);
                 request.setHeader("accept", "application/json+ld");
-                ClassicHttpResponse response = httpClient.execute(request);
-                String responseString = EntityUtils.toString(response.getEntity());
-                Map responseMap = Storage.mapper.readValue(responseString, Map.class);
-
-                List<Map<String,?>> items = ((List<Map<String,?>>) responseMap.get("orderedItems"));
-
-                for (Map<String, ?> item : items) {
-                    long modified = ZonedDateTime.parse((String) item.get("published")).toInstant().toEpochMilli();
-                    if (!foundAlreadyTakenChange) {
-                        if (modified + timeTruncationErrorMargin > syncedUntil) {
-                            String changeId = "" + item.get("published") + ((Map)item.get("object")).get("id");
-                            if (newLastTakenChangeId == null)
-                                newLastTakenChangeId = changeId;
-
-                            if (!changeId.equals(lastTakenChangeId)) {
-                                changesMade |= handleEmmActivity(item, connection);
-                            } else {
-                                foundAlreadyTakenChange = true;
+                Map<String, ?> latest = null;
+                Map<String, Object> responseMap;
+                try (ClassicHttpResponse response = Http.getClient().execute(request);
+                     EmmPageReader page = new EmmPageReader(response.getEntity().getContent(), "orderedItems")) {
+                    // Each activity is taken care of as soon as it has been read, while the rest of the page is still arriving.
+                    for (Map<String, ?> item = page.nextItem(); item != null; item = page.nextItem()) {
+                        latest = item;
+                        long modified = ZonedDateTime.parse((String) item.get("published")).toInstant().toEpochMilli();
+                        if (!foundAlreadyTakenChange) {
+                            if (modified + timeTruncationErrorMargin > syncedUntil) {
+                                String changeId = "" + item.get("published") + ((Map)item.get("object")).get("id");
+                                if (newLastTakenChangeId == null)
+                                    newLastTakenChangeId = changeId;
+
+                                if (!changeId.equals(lastTakenChangeId)) {
+                                    changesMade |= handleEmmActivity(item, connection);
+                                } else {
+                                    foundAlreadyTakenChange = true;
+                                }
                             }
                         }
                     }
+                    responseMap = page.getProperties();
                 }
 
-                Map<String, ?> latest = items.getLast();
-                long earliestTimeOnPage = ZonedDateTime.parse((String) latest.get("published")).toInstant().toEpochMilli();
+                // An empty page means there is nothing further back either.
+                long earliestTimeOnPage = latest == null ? 0 : ZonedDateTime.parse((String) latest.get("published")).toInstant().toEpochMilli();
                 if (earliestTimeOnPage < syncedUntil) {
                     Storage.writeState(SYNCED_UNTIL_KEY, "" + newUntilTarget, connection);
                     Storage.writeState(LAST_TAKEN_CHANGE_KEY, newLastTakenChangeId, connection);
                     connection.commit(); // Time stamp and updated data together
+                    DependencyDownloader.forgetRecentlyWritten(); // Committed, filterUrisWeAlreadyHave knows about them now
                     //Storage.log("Now synced up until: " + newUntilTarget + " (" + Instant.ofEpochMilli(newUntilTarget) + ")");
                     uri = null;
                 } else {
@@ -88,10 +81,12 @@ public class EmmSync {
                 }
             }
 
-        } catch (URISyntaxException | IOException | SQLException | ParseException e) {
+        } catch (URISyntaxException | IOException | SQLException e) {
             Storage.log("Sync iteration request failed. (" + uri.toString() + ")", e);
             try {
                 connection.rollback();
+                EntityCache.clear(); // May hold entities from the writes we just undid
+                DependencyDownloader.forgetRecentlyWritten();
             } catch (SQLException se) {
                 Storage.log("Iteration update rollback failed. Fatal.", se);
                 System.exit(1);
@@ -121,7 +116,7 @@ public class EmmSync {
 
                             Set<String> dependenciesToDownload = Records.collectUrisReferencedByThisRecord(mainEntity);
                             Records.filterUrisWeAlreadyHave(dependenciesToDownload, connection);
-                            List<Map> dependencies = Records.downloadDependencies(dependenciesToDownload, new HashSet<>(), connection);
+                            List<Map> dependencies = DependencyDownloader.download(dependenciesToDownload, connection);
 
                             mainEntity.put( "meta", recordEntity );
 
@@ -149,6 +144,9 @@ public class EmmSync {
                 break;
             }
             case "Update":
+                // Most updates in Libris concern records we do not have, which the filter can tell us without a query.
+                if (!Records.mightHaveUri((String) activityObject.get("id"), connection))
+                    break;
                 try (PreparedStatement statement = connection.prepareStatement("SELECT id FROM entities WHERE URI = ?")) {
                     statement.setString(1, (String) activityObject.get("id"));
                     statement.execute();
@@ -168,7 +166,7 @@ public class EmmSync {
                                 // An update may also drag in new dependencies we need to go get.
                                 Set<String> dependenciesToDownload = Records.collectUrisReferencedByThisRecord(mainEntity);
                                 Records.filterUrisWeAlreadyHave(dependenciesToDownload, connection);
-                                List<Map> dependencies = Records.downloadDependencies(dependenciesToDownload, new HashSet<>(), connection);
+                                List<Map> dependencies = DependencyDownloader.download(dependenciesToDownload, connection);
                                 for (Map dependency : dependencies) {
                                     Records.writeRecord(dependency, connection);
                                 }
@@ -186,6 +184,8 @@ public class EmmSync {
                     statement.setString(1, (String) activityObject.get("id"));
                     statement.execute();
                 }
+                EntityCache.invalidate((String) activityObject.get("id"));
+                DependencyDownloader.forgetRecentlyWritten((String) activityObject.get("id"));
                 Storage.log("Taking relevant EMM delete: " + activityObject.get("id"));
                 break;
             }
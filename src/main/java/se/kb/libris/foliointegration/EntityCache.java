@@ -0,0 +1,107 @@
+package se.kb.libris.foliointegration;
+
+import java.util.*;
+
+/**
+ * A size bounded (least recently used) cache of parsed entities, keyed by both URI and ROWID.
+ *
+ * Shared entities, like subjects, agents and libraries, are read and parsed over and over when formatting records
+ * for FOLIO. This saves us both the query and the parsing. Entities handed out (and handed in) are always copies,
+ * as callers typically go on to modify them.
+ *
+ * Anything writing or deleting an entity must invalidate it here, and anything rolling back entity writes must
+ * clear the whole cache.
+ */
+public class EntityCache {
+
+    private record Entry(long id, String uri, Map entity) {}
+
+    private static final int maxEntries;
+    static {
+        String size = System.getenv("ENTITY_CACHE_SIZE");
+        maxEntries = (size == null || size.isBlank()) ? 20000 : Integer.parseInt(size.trim());
+    }
+
+    private static final HashMap<Long, Entry> byId = new HashMap<>();
+    private static final LinkedHashMap<String, Entry> byUri = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxEntries) {
+                byId.remove(eldest.getValue().id);
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static long hits = 0;
+    private static long misses = 0;
+
+    public static synchronized Map getByUri(String uri) {
+        Entry entry = byUri.get(uri);
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return (Map) deepCopy(entry.entity);
+    }
+
+    public static synchronized Map getById(long id) {
+        Entry entry = byId.get(id);
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        byUri.get(entry.uri); // touch, to keep the access order
+        return (Map) deepCopy(entry.entity);
+    }
+
+    public static synchronized void put(long id, String uri, Map entity) {
+        if (uri == null || maxEntries <= 0)
+            return;
+        invalidate(uri);
+        Entry entry = new Entry(id, uri, (Map) deepCopy(entity));
+        byId.put(id, entry);
+        byUri.put(uri, entry);
+    }
+
+    public static synchronized void invalidate(String uri) {
+        Entry entry = byUri.remove(uri);
+        if (entry != null)
+            byId.remove(entry.id);
+    }
+
+    public static synchronized void clear() {
+        byUri.clear();
+        byId.clear();
+    }
+
+    public static synchronized String describe() {
+        long total = hits + misses;
+        long percent = total == 0 ? 0 : (100 * hits) / total;
+        return byUri.size() + " cached entities, " + hits + " hits, " + misses + " misses (" + percent + "% hit rate)";
+    }
+
+    static Object deepCopy(Object node) {
+        switch (node) {
+            case Map m: {
+                var copy = new LinkedHashMap(m.size() * 2);
+                for (Object k : m.keySet()) {
+                    copy.put(k, deepCopy(m.get(k)));
+                }
+                return copy;
+            }
+            case List l: {
+                var copy = new ArrayList(l.size());
+                for (Object o : l) {
+                    copy.add(deepCopy(o));
+                }
+                return copy;
+            }
+            case null, default:
+                return node; // Strings, numbers and booleans are immutable
+        }
+    }
+}
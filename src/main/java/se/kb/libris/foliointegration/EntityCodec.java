@@ -0,0 +1,203 @@
+package se.kb.libris.foliointegration;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The on-disk encoding of entities (the entities.entity column).
+ *
+ * Entities are written in the current encoding, but any known encoding can be read, so that rows written by older
+ * versions can coexist with new ones (and be migrated in the background, see EntityMigration). Every encoding is
+ * recognizable by the first byte(s) of the stored value, which serve as its format tag.
+ *
+ * Once a compression dictionary has been trained (see trainDictionary), entities are Smile encoded and then zstd
+ * compressed with the newest dictionary. Our entities are small and highly repetitive across rows (the same keys, the
+ * same https://id.kb.se/ and https://libris.kb.se/ prefixes), which is exactly what dictionary compression is good at,
+ * and what compressing each row on its own is not. Older dictionaries are kept (in the entity_dictionaries table) for
+ * as long as rows compressed with them may remain.
+ */
+public class EntityCodec {
+
+    public enum Encoding {
+        // Plain JSON text, as written by older versions. Always starts with '{'.
+        JSON,
+
+        // Jackson Smile (binary JSON). Always starts with the Smile header ":)\n".
+        SMILE,
+
+        // Smile, zstd compressed with a trained dictionary. Always starts with the zstd frame magic (28 B5 2F FD),
+        // and the frame header names the dictionary (by its zstd dictionary ID) needed to decompress it.
+        ZSTD,
+    }
+
+    private static final int compressionLevel = 3;
+    private static final int dictionarySize = 112640; // The zstd CLI default, 110 KiB
+    private static final int trainingSamples = 20000;
+
+    private static final ObjectMapper smileMapper = new ObjectMapper(SmileFactory.builder()
+            .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES) // Lots of repeated values (types, URIs) in our data
+            .build());
+
+    // Every dictionary that may still be in use by some row, by zstd dictionary ID. Read by GUI threads too.
+    private static final Map<Long, ZstdDictDecompress> decompressionDictionaries = new ConcurrentHashMap<>();
+
+    // The dictionary to compress new writes with, null for no compression.
+    private static volatile ZstdDictCompress compressionDictionary = null;
+    private static volatile long compressionDictionaryId = 0;
+
+    public static Encoding current() {
+        return compressionDictionary == null ? Encoding.SMILE : Encoding.ZSTD;
+    }
+
+    public static String describeCurrent() {
+        return compressionDictionary == null ? "SMILE" : "ZSTD (dictionary " + compressionDictionaryId + ")";
+    }
+
+    public static byte[] encode(Map entity) throws IOException {
+        byte[] smile = smileMapper.writeValueAsBytes(entity);
+        ZstdDictCompress dictionary = compressionDictionary;
+        if (dictionary == null)
+            return smile;
+        return Zstd.compress(smile, dictionary);
+    }
+
+    public static Map decode(byte[] data) throws IOException {
+        return switch (encodingOf(data)) {
+            case JSON -> Storage.mapper.readValue(data, Map.class);
+            case SMILE -> smileMapper.readValue(data, Map.class);
+            case ZSTD -> smileMapper.readValue(decompress(data), Map.class);
+        };
+    }
+
+    public static Encoding encodingOf(byte[] data) {
+        if (data.length >= 3 && data[0] == ':' && data[1] == ')' && data[2] == '\n')
+            return Encoding.SMILE;
+        if (data.length >= 4 && data[0] == (byte) 0x28 && data[1] == (byte) 0xB5 && data[2] == (byte) 0x2F && data[3] == (byte) 0xFD)
+            return Encoding.ZSTD;
+        return Encoding.JSON;
+    }
+
+    /**
+     * Is this stored value in the encoding (and with the dictionary) that a write would produce right now?
+     */
+    public static boolean isCurrent(byte[] data) {
+        Encoding encoding = encodingOf(data);
+        if (encoding != current())
+            return false;
+        return encoding != Encoding.ZSTD || Zstd.getDictIdFromFrame(data) == compressionDictionaryId;
+    }
+
+    private static byte[] decompress(byte[] data) throws IOException {
+        long dictionaryId = Zstd.getDictIdFromFrame(data);
+        ZstdDictDecompress dictionary = decompressionDictionaries.get(dictionaryId);
+        if (dictionary == null)
+            throw new IOException("Entity compressed with unknown dictionary: " + dictionaryId);
+        long size = Zstd.getFrameContentSize(data);
+        if (size < 0 || size > Integer.MAX_VALUE)
+            throw new IOException("Corrupt compressed entity (frame content size: " + size + ")");
+        return Zstd.decompress(data, dictionary, (int) size);
+    }
+
+    private static void useDictionary(long id, byte[] dictionary) {
+        decompressionDictionaries.put(id, new ZstdDictDecompress(dictionary));
+        compressionDictionary = new ZstdDictCompress(dictionary, compressionLevel);
+        compressionDictionaryId = id;
+    }
+
+    /**
+     * Load all stored dictionaries, and start compressing with the newest one (if any).
+     */
+    public static synchronized void loadDictionaries(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT id, dictionary FROM entity_dictionaries ORDER BY created")) {
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    useDictionary(resultSet.getLong(1), resultSet.getBytes(2));
+                }
+            }
+        }
+        if (compressionDictionary != null)
+            Storage.log("Compressing stored entities with dictionary: " + compressionDictionaryId);
+    }
+
+    /**
+     * Train a new dictionary on a random sample of the stored entities, store it and start compressing new writes
+     * with it. Existing rows are left as they are (see EntityMigration). Does not commit.
+     */
+    public static synchronized void trainDictionary(Connection connection) throws SQLException, IOException {
+        long maxId = 0;
+        try (PreparedStatement statement = connection.prepareStatement("SELECT MAX(id) FROM entities")) {
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next())
+                    maxId = resultSet.getLong(1);
+            }
+        }
+        if (maxId == 0) {
+            Storage.log("No stored entities to train a compression dictionary on.");
+            return;
+        }
+
+        Storage.log("Training new compression dictionary for stored entities.");
+        ZstdDictTrainer trainer = new ZstdDictTrainer(100 * dictionarySize, dictionarySize);
+        int samples = 0;
+        try (PreparedStatement statement = connection.prepareStatement("SELECT entity FROM entities WHERE id >= ? LIMIT 1")) {
+            for (int i = 0; i < trainingSamples; ++i) {
+                statement.setLong(1, ThreadLocalRandom.current().nextLong(1, maxId + 1));
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next())
+                        continue;
+                    byte[] data = resultSet.getBytes(1);
+                    if (data == null)
+                        continue;
+                    if (!trainer.addSample(smileMapper.writeValueAsBytes(decode(data))))
+                        break; // sample buffer full
+                    ++samples;
+                }
+            }
+        }
+
+        byte[] dictionary = trainer.trainSamples();
+        long id = Zstd.getDictIdFromDict(dictionary);
+        if (id == 0 || decompressionDictionaries.containsKey(id)) {
+            Storage.log("Trained compression dictionary was unusable (ID: " + id + "), please try again.");
+            return;
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO entity_dictionaries (id, dictionary, created) VALUES (?, ?, ?)")) {
+            statement.setLong(1, id);
+            statement.setBytes(2, dictionary);
+            statement.setString(3, ZonedDateTime.now().toString());
+            statement.execute();
+        }
+        useDictionary(id, dictionary);
+        Storage.log("Trained compression dictionary " + id + " (" + dictionary.length + " bytes) on " + samples + " sampled entities.");
+    }
+
+    /**
+     * Drop all dictionaries but the current one. Only call this once no stored row can be using them anymore.
+     */
+    public static synchronized void dropUnusedDictionaries(Connection connection) throws SQLException {
+        if (compressionDictionary == null)
+            return;
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM entity_dictionaries WHERE id != ?")) {
+            statement.setLong(1, compressionDictionaryId);
+            if (statement.executeUpdate() > 0)
+                Storage.log("Dropped compression dictionaries no longer in use.");
+        }
+        decompressionDictionaries.keySet().removeIf(id -> id != compressionDictionaryId);
+    }
+}
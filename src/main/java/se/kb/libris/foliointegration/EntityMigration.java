@@ -0,0 +1,86 @@
+package se.kb.libris.foliointegration;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Background re-encoding of stored entities into the current EntityCodec encoding.
+ *
+ * This runs a small batch at a time from the main loop, alongside the normal syncing, so that an existing state file
+ * gets migrated online. Rows are rewritten in place (same ROWID, same modified-time), so that the migration is not
+ * mistaken for changes in Libris.
+ */
+public class EntityMigration {
+
+    public final static String MIGRATED_TO_ID_KEY = "EntityMigrationMigratedUpToID";
+
+    private final static int batchSize = 500;
+
+    private static boolean completed = false;
+    private static long rewrittenSinceLog = 0;
+
+    /**
+     * Start over from the first row, typically because the current encoding has changed. Does not commit.
+     */
+    public static void restart(Connection connection) {
+        Storage.clearState(MIGRATED_TO_ID_KEY, connection);
+        completed = false;
+        rewrittenSinceLog = 0;
+    }
+
+    public static boolean run() throws SQLException, IOException {
+        if (completed)
+            return false;
+
+        Connection connection = Storage.getConnection();
+        String migratedToID = Storage.getState(MIGRATED_TO_ID_KEY, connection);
+        long migratedTo = migratedToID == null ? 0 : Long.parseLong(migratedToID);
+        if (migratedTo == 0) {
+            Storage.log("Starting background re-encoding of stored entities into: " + EntityCodec.describeCurrent());
+        }
+
+        long lastId = migratedTo;
+        Map<Long, byte[]> toRewrite = new LinkedHashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT id, entity FROM entities WHERE id > ? ORDER BY id LIMIT " + batchSize)) {
+            statement.setLong(1, migratedTo);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    lastId = resultSet.getLong(1);
+                    byte[] data = resultSet.getBytes(2);
+                    if (data != null && !EntityCodec.isCurrent(data))
+                        toRewrite.put(lastId, data);
+                }
+            }
+        }
+
+        for (long id : toRewrite.keySet()) {
+            PreparedStatement update = Storage.getCachedStatement("UPDATE entities SET entity = ? WHERE id = ?", connection);
+            update.setBytes(1, EntityCodec.encode(EntityCodec.decode(toRewrite.get(id))));
+            update.setLong(2, id);
+            update.execute();
+        }
+        rewrittenSinceLog += toRewrite.size();
+
+        if (lastId == migratedTo) {
+            Storage.log("Background re-encoding of stored entities completed (up to internal ID " + migratedTo + ").");
+            completed = true;
+            // Every row has now been (re)written with the current dictionary, if any.
+            EntityCodec.dropUnusedDictionaries(connection);
+            connection.commit();
+            return false;
+        }
+
+        Storage.writeState(MIGRATED_TO_ID_KEY, "" + lastId, connection);
+        connection.commit();
+        if (rewrittenSinceLog >= 100000) {
+            Storage.log("Background re-encoding of stored entities now at internal ID: " + lastId);
+            rewrittenSinceLog = 0;
+        }
+        return true;
+    }
+}
@@ -1,5 +1,9 @@
 package se.kb.libris.foliointegration;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -7,12 +11,34 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FolioSync {
 
     public final static String SYNCED_UNTIL_KEY = "FOLIOSyncStateSyncedUntil";
 
     private final static List<String> SIGEL_LIST = Collections.unmodifiableList( Arrays.asList(System.getenv("SIGEL").split(",")) );
+    private final static String SIGEL_LIST_JSON;
+
+    private final static int formattingThreads;
+    private final static int formattingQueueDepth;
+    private final static ExecutorService formattingPool;
+    static {
+        try {
+            SIGEL_LIST_JSON = Storage.mapper.writeValueAsString(SIGEL_LIST);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        String threads = System.getenv("FOLIO_FORMAT_THREADS");
+        formattingThreads = (threads == null || threads.isBlank()) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads.trim());
+        formattingQueueDepth = formattingThreads * 4;
+        formattingPool = Executors.newFixedThreadPool(formattingThreads, Thread.ofPlatform().name("formatting-", 0).daemon().factory());
+    }
 
     public static boolean run() throws SQLException, IOException {
         Format.lookupJsltConversions();
@@ -23,7 +49,7 @@ public class FolioSync {
 
             // Read a batch, ready for syncing to folio
             long modified = syncedUntil;
-            List<Long> ids = new ArrayList<>(500);
+            LongList ids = new LongList(500);
             try (PreparedStatement statement = connection.prepareStatement("SELECT id, modified FROM entities WHERE modified > ? ORDER BY modified ASC LIMIT 500")) {
                 statement.setLong(1, syncedUntil);
                 statement.execute();
@@ -42,12 +68,9 @@ public class FolioSync {
                 anythingToDo = false;
             }
 
-            // Possibly write
-            for (int i = 0; i < ids.size(); ++i) {
-                long id = ids.get(i);
-                var cycleProtection = new HashSet<Long>();
-                considerForExport(id, cycleProtection, connection);
-            }
+            // Possibly write. Plan first, so that every affected root record gets formatted only once per batch.
+            LongList roots = collectAffectedRoots(ids, connection);
+            exportIfChanged(roots, connection);
 
             // Commit state for next pass
             boolean writesReceived = FolioWriting.finalizePendingWrites(connection);
@@ -68,105 +91,316 @@ public class FolioSync {
         return anythingToDo;
     }
 
-    public static void considerForExport(long id, Set<Long> cycleProtection, Connection connection) throws SQLException, IOException, InterruptedException {
-        if (cycleProtection.contains(id))
-            return;
-        cycleProtection.add(id);
+    /**
+     * Find every root record affected by a change to any of the given entities. That is the entities themselves if
+     * they are root records, and otherwise every root record that depends on them, directly or indirectly. Each root
+     * record is listed only once, no matter how many of the changes it depends on, so that a burst of changes to
+     * closely related entities does not get the same root records formatted over and over.
+     *
+     * A change to a widely used entity (say a subject) can fan out to a huge number of dependent records. The whole
+     * walk is therefore done by sqlite, in one recursive query: Starting from the changed entities, follow every
+     * referencing entity (but never onwards from a root record), and return the root records found. The UNION (rather
+     * than UNION ALL) is what protects against cycles.
+     */
+    public static LongList collectAffectedRoots(LongList changedIds, Connection connection) throws SQLException, IOException {
+        String sql = """
+                WITH RECURSIVE affected(id) AS (
+                    SELECT value FROM json_each(?1)
+                    UNION
+                    SELECT referenced_uris.entity_id
+                    FROM affected
+                    JOIN entities ON entities.id = affected.id
+                    JOIN uris ON uris.uri = entities.uri
+                    JOIN referenced_uris ON referenced_uris.uri_id = uris.id
+                    WHERE NOT (entities.type = 'Item' AND entities.held_by IN (SELECT value FROM json_each(?2)))
+                )
+                SELECT affected.id
+                FROM affected
+                JOIN entities ON entities.id = affected.id
+                WHERE entities.type = 'Item' AND entities.held_by IN (SELECT value FROM json_each(?2))
+                """;
 
-        // Read the record data
-        String data = null;
-        try (PreparedStatement statement = connection.prepareStatement("SELECT entity FROM entities WHERE id = ?")) {
-            statement.setLong(1, id);
-            statement.execute();
-            try (ResultSet resultSet = statement.getResultSet()) {
-                if (resultSet.next()) {
-                    data = resultSet.getString(1);
-                }
-            }
+        StringBuilder changedIdsJson = new StringBuilder("[");
+        for (int i = 0; i < changedIds.size(); ++i) {
+            if (i > 0)
+                changedIdsJson.append(',');
+            changedIdsJson.append(changedIds.get(i));
         }
-        if (data == null)
-            return;
-        Map mainEntity = Storage.mapper.readValue(data, Map.class);
-
-        // Is this a folio root record (an 'Item' held by a selected library)?
-        boolean isRootRecord = false; // assumption
-        if (mainEntity.get("@type") instanceof String type) {
-            if (type.equals("Item")) {
-                if (mainEntity.get("heldBy") instanceof Map heldBy) {
-                    if (heldBy.get("@id") instanceof String heldById) {
-                        String libraryCode = heldById.substring(heldById.lastIndexOf('/') + 1);
-                        isRootRecord |= SIGEL_LIST.contains(libraryCode);
-                    }
-                }
+        changedIdsJson.append(']');
+
+        LongList roots = new LongList();
+        PreparedStatement statement = Storage.getCachedStatement(sql, connection);
+        statement.setString(1, changedIdsJson.toString());
+        statement.setString(2, SIGEL_LIST_JSON);
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                roots.add(resultSet.getLong(1));
             }
         }
+        return roots;
+    }
 
-        // If this *is* a root record, we may need to write it to folio.
-        if (isRootRecord) {
+    // A formatted root record with its StructuralChecksum (whole and per part), and the fingerprint of what it was
+    // formatted from. The record (and checksums) is null when formatting was skipped, as the inputs were the same as
+    // when the record was last exported.
+    private record Formatted(long inputFingerprint, ObjectNode record, byte[] checksum, Map<String, byte[]> partChecksums) {}
 
-            // Has this record already been exported with this checksum (then we should skip it).
-            Records.embellishWithLocalData(mainEntity, new HashSet<>(), connection);
-            mainEntity = Format.formatForFolio(mainEntity, connection);
-            long checksum = calculateCheckSum(mainEntity);
+    private static final String HOLDING_PART_PREFIX = "holdingsRecord ";
 
-            // Note that this HRID is for the instance, and not the selected item.
-            String hrid = (String) ((Map)mainEntity.get("instance")).get("hrid");
+    /**
+     * Queue each of the given root records for export to FOLIO, if visibly changed since it was last exported.
+     *
+     * Loading and formatting the records is CPU bound and needs only committed data, so it is done in parallel on
+     * the formatting threads (each with a read-only connection of its own). The results are taken care of here, on
+     * the calling thread, in order.
+     *
+     * Nothing is left formatting once this returns (or throws). Should we fail, records not yet being formatted are
+     * skipped, and those being formatted are waited for, as they could otherwise go on reading (and caching) entities
+     * that the caller is about to roll back or write anew.
+     */
+    public static void exportIfChanged(LongList rootIds, Connection connection) throws SQLException, IOException, InterruptedException {
+        ArrayDeque<Future<Formatted>> inFlight = new ArrayDeque<>();
+        AtomicBoolean abandoned = new AtomicBoolean(false);
+        int nextToSubmit = 0;
+        try {
+            for (int i = 0; i < rootIds.size(); ++i) {
+                // Keep a limited number of records formatting ahead of us, not the whole (possibly huge) list.
+                while (nextToSubmit < rootIds.size() && nextToSubmit - i < formattingQueueDepth) {
+                    long id = rootIds.get(nextToSubmit++);
+                    Long lastInputFingerprint = getLastInputFingerprint(id, connection);
+                    inFlight.add(formattingPool.submit(() -> abandoned.get() ? null : format(id, lastInputFingerprint, Storage.getReadOnlyConnection())));
+                }
 
-            boolean export = true; // assumption
-            try (PreparedStatement statement = connection.prepareStatement("SELECT checksum FROM exported_checksum WHERE entity_id = ?")) {
-                statement.setLong(1, id);
-                statement.execute();
-                try (ResultSet resultSet = statement.getResultSet()) {
-                    if (resultSet.next()) {
-                        long lastExportedChecksum = resultSet.getLong(1);
-                        if (lastExportedChecksum == checksum) {
-                            export = false;
-                        }
-                    }
+                long id = rootIds.get(i);
+                Formatted formatted;
+                try {
+                    formatted = inFlight.removeFirst().get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not format root record with internal ID: " + id, e.getCause());
                 }
+                if (formatted != null && formatted.record != null)
+                    exportIfChanged(id, formatted, connection);
             }
-            if (export) {
-                // A visible difference. Write it to folio!
-                //Storage.log(" ** WRITE OF: " + mainEntity);
-                FolioWriting.queueForExport(mainEntity, connection);
-                try (PreparedStatement statement = connection.prepareStatement("INSERT INTO exported_checksum(entity_id, hrid, checksum) VALUES(?, ?, ?) ON CONFLICT(entity_id) DO UPDATE SET checksum=excluded.checksum")) {
-                    statement.setLong(1, id);
-                    statement.setString(2, hrid);
-                    statement.setLong(3, checksum);
-                    statement.execute();
+        } finally {
+            abandoned.set(true);
+            boolean interrupted = false;
+            for (Future<Formatted> future : inFlight) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true; // Keep waiting, but let the caller know
+                    } catch (ExecutionException e) {
+                        break; // Whatever the failure, it is no longer running
+                    }
                 }
             }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Formatted format(long id, Long lastInputFingerprint, Connection readOnlyConnection) throws SQLException, IOException {
+        long inputFingerprint = calculateInputFingerprint(id, readOnlyConnection);
+        if (lastInputFingerprint != null && lastInputFingerprint == inputFingerprint)
+            return new Formatted(inputFingerprint, null, null, null);
+
+        Map mainEntity = Records.loadEntityById(id, readOnlyConnection);
+        if (mainEntity == null)
+            return null;
+        Records.embellishWithLocalData(mainEntity, readOnlyConnection);
+        ObjectNode formatted = Format.formatForFolio(mainEntity, readOnlyConnection);
+        return new Formatted(inputFingerprint, formatted, StructuralChecksum.of(formatted), calculatePartChecksums(formatted));
+    }
+
+    private static Long getLastInputFingerprint(long id, Connection connection) throws SQLException {
+        PreparedStatement statement = Storage.getCachedStatement("SELECT input_fingerprint FROM exported_checksum WHERE entity_id = ?", connection);
+        statement.setLong(1, id);
+        try (ResultSet resultSet = statement.executeQuery()) {
+            if (resultSet.next()) {
+                long fingerprint = resultSet.getLong(1);
+                return resultSet.wasNull() ? null : fingerprint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A hash of everything formatForFolio could possibly make use of, when formatting the given root record. If this
+     * is the same as when the record was last exported, then so is the formatted record, and formatting it again can
+     * be skipped.
+     *
+     * The Libris data used is (a superset of) the root record, every entity linked from it, the holdings of its
+     * instance and every entity linked from those, recursively. Each of these is identified by its ROWID and modified
+     * time (as any rewrite of an entity gives it a new modified time, and a replacement also a new ROWID). The rest is
+     * covered by Format.getFormattingVersion.
+     */
+    private static long calculateInputFingerprint(long id, Connection connection) throws SQLException {
+        String sql = """
+                WITH RECURSIVE inputs(id) AS (
+                    SELECT ?1
+                    UNION
+                    SELECT holdings.entity_id
+                    FROM entities root
+                    JOIN uris ON uris.uri = root.item_of
+                    JOIN referenced_uris holdings ON holdings.uri_id = uris.id
+                    WHERE root.id = ?1
+                    UNION
+                    SELECT linked.id
+                    FROM inputs
+                    JOIN referenced_uris ON referenced_uris.entity_id = inputs.id
+                    JOIN uris ON uris.id = referenced_uris.uri_id
+                    JOIN entities linked ON linked.uri = uris.uri
+                )
+                SELECT entities.id, entities.modified
+                FROM inputs
+                JOIN entities ON entities.id = inputs.id
+                ORDER BY entities.id
+                """;
+
+        long h = Format.getFormattingVersion();
+        PreparedStatement statement = Storage.getCachedStatement(sql, connection);
+        statement.setLong(1, id);
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                h = mix(h ^ resultSet.getLong(1));
+                h = mix(h ^ resultSet.getLong(2));
+            }
+        }
+        return h;
+    }
 
-        } else { // If not (a root record): Could it have affected another record that is a root record ?
+    // The splitmix64 finalizer
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
 
-            // THIS ONE COULD GET HUGE.
-            // A Long (upper-case L) object uses 24 bytes.
-            // A long (lower-case l), primitive, uses only 8 but can't be stored in a list.
-            // Consider doing something better here, perhaps.
-            List<Long> possiblyAffectedIDs = new ArrayList<>();
+    private static void exportIfChanged(long id, Formatted formatted, Connection connection) throws SQLException, IOException, InterruptedException {
+        ObjectNode mainEntity = formatted.record;
 
-            if (mainEntity.get("@id") instanceof String mainEntityId) {
+        // Note that this HRID is for the instance, and not the selected item.
+        String hrid = mainEntity.path("instance").path("hrid").textValue();
 
-                try (PreparedStatement statement = connection.prepareStatement("SELECT entity_id FROM referenced_uris WHERE referenced_uri = ?")) {
-                    statement.setString(1, mainEntityId);
-                    statement.execute();
-                    try (ResultSet resultSet = statement.getResultSet()) {
-                        while (resultSet.next()) {
-                            long referencingEntityId = resultSet.getLong(1);
-                            possiblyAffectedIDs.add( referencingEntityId );
-                        }
+        // Has this record already been exported with this checksum (then we should skip it).
+        boolean export = true; // assumption
+        try (PreparedStatement statement = connection.prepareStatement("SELECT structural_checksum, checksum FROM exported_checksum WHERE entity_id = ?")) {
+            statement.setLong(1, id);
+            statement.execute();
+            try (ResultSet resultSet = statement.getResultSet()) {
+                if (resultSet.next()) {
+                    byte[] lastExportedChecksum = resultSet.getBytes(1);
+                    if (lastExportedChecksum != null) {
+                        export = !Arrays.equals(lastExportedChecksum, formatted.checksum);
+                    } else {
+                        // Last exported by an older version, compare using the checksum of that time instead.
+                        long legacyChecksum = resultSet.getLong(2);
+                        export = resultSet.wasNull() || legacyChecksum != calculateCheckSum(Storage.mapper.treeToValue(mainEntity, Map.class));
                     }
                 }
-
             }
+        }
+        if (export) {
+            // A visible difference. Write it to folio! But only the parts of it that changed, if possible.
+            //Storage.log(" ** WRITE OF: " + mainEntity);
+            ObjectNode changedParts = selectChangedParts(mainEntity, formatted.partChecksums, getLastPartChecksums(id, connection), connection);
+            if (changedParts == null)
+                FolioWriting.queueForExport(mainEntity, false, connection);
+            else
+                FolioWriting.queueForExport(changedParts, true, connection);
+            try (PreparedStatement statement = connection.prepareStatement("INSERT INTO exported_checksum(entity_id, hrid, checksum, input_fingerprint, structural_checksum) VALUES(?, ?, NULL, ?, ?) ON CONFLICT(entity_id) DO UPDATE SET checksum=NULL, input_fingerprint=excluded.input_fingerprint, structural_checksum=excluded.structural_checksum")) {
+                statement.setLong(1, id);
+                statement.setString(2, hrid);
+                statement.setLong(3, formatted.inputFingerprint);
+                statement.setBytes(4, formatted.checksum);
+                statement.execute();
+            }
+            writePartChecksums(id, formatted.partChecksums, connection);
+        } else {
+            // Not visibly changed, but remember the new inputs, so that formatting can be skipped next time (and
+            // replace any checksum of the older kind).
+            try (PreparedStatement statement = connection.prepareStatement("UPDATE exported_checksum SET input_fingerprint = ?, structural_checksum = ?, checksum = NULL WHERE entity_id = ?")) {
+                statement.setLong(1, formatted.inputFingerprint);
+                statement.setBytes(2, formatted.checksum);
+                statement.setLong(3, id);
+                statement.execute();
+            }
+        }
+    }
+
+    /**
+     * Checksums of the parts of a formatted record that can be written to FOLIO separately: The instance, its
+     * relations and each of its holdings (by HRID, items included). Null if the record cannot be split up that way.
+     */
+    private static Map<String, byte[]> calculatePartChecksums(ObjectNode record) {
+        Map<String, byte[]> parts = new HashMap<>();
+        parts.put("instance", StructuralChecksum.of(record.get("instance")));
+        if (record.has("instanceRelations"))
+            parts.put("instanceRelations", StructuralChecksum.of(record.get("instanceRelations")));
+        for (JsonNode holding : record.path("holdingsRecords")) {
+            String hrid = holding.path("hrid").textValue();
+            if (hrid == null)
+                return null;
+            if (parts.put(HOLDING_PART_PREFIX + hrid, StructuralChecksum.of(holding)) != null)
+                return null; // The same HRID twice
+        }
+        return parts;
+    }
 
-            for (Long referencingEntityId : possiblyAffectedIDs) {
-                considerForExport(referencingEntityId, cycleProtection, connection);
+    private static Map<String, byte[]> getLastPartChecksums(long id, Connection connection) throws SQLException {
+        Map<String, byte[]> parts = new HashMap<>();
+        PreparedStatement statement = Storage.getCachedStatement("SELECT part, checksum FROM exported_part_checksum WHERE entity_id = ?", connection);
+        statement.setLong(1, id);
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                parts.put(resultSet.getString(1), resultSet.getBytes(2));
             }
+        }
+        return parts;
+    }
+
+    private static void writePartChecksums(long id, Map<String, byte[]> parts, Connection connection) throws SQLException {
+        PreparedStatement delete = Storage.getCachedStatement("DELETE FROM exported_part_checksum WHERE entity_id = ?", connection);
+        delete.setLong(1, id);
+        delete.execute();
+        if (parts == null)
+            return;
+        PreparedStatement insert = Storage.getCachedStatement("INSERT INTO exported_part_checksum(entity_id, part, checksum) VALUES(?, ?, ?)", connection);
+        for (String part : parts.keySet()) {
+            insert.setLong(1, id);
+            insert.setString(2, part);
+            insert.setBytes(3, parts.get(part));
+            insert.execute();
+        }
+    }
+
+    /**
+     * The instance, with only those of its relations and holdings that changed since the last export (or that have
+     * items waiting to be created). Null if the whole record must be sent: When nothing is known about what was last
+     * exported, or when something that was exported is now gone (as FOLIO only removes what is left out of a whole
+     * record).
+     */
+    private static ObjectNode selectChangedParts(ObjectNode record, Map<String, byte[]> parts, Map<String, byte[]> lastParts, Connection connection) throws SQLException {
+        if (parts == null || lastParts.isEmpty() || !parts.keySet().containsAll(lastParts.keySet()))
+            return null;
 
+        ObjectNode changed = Storage.mapper.createObjectNode();
+        changed.set("instance", record.get("instance")); // Always sent, the record set is upserted by its HRID
+        if (record.has("instanceRelations") && !Arrays.equals(parts.get("instanceRelations"), lastParts.get("instanceRelations")))
+            changed.set("instanceRelations", record.get("instanceRelations"));
+        ArrayNode changedHoldings = changed.putArray("holdingsRecords");
+        for (JsonNode holding : record.path("holdingsRecords")) {
+            String hrid = holding.path("hrid").textValue();
+            String part = HOLDING_PART_PREFIX + hrid;
+            if (!Arrays.equals(parts.get(part), lastParts.get(part)) || FolioWriting.isAwaitingItemCreation(hrid, connection))
+                changedHoldings.add(holding);
         }
+        return changed;
     }
 
+    // The checksum of older versions, only used to compare with rows of exported_checksum written by those.
     private static long calculateCheckSum(Object data) {
         return calculateCheckSumInternal(data, 1, 1);
     }
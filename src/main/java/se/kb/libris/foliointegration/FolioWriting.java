@@ -1,19 +1,18 @@
 package se.kb.libris.foliointegration;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.classic.methods.HttpPut;
-import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.ParseException;
 import org.apache.hc.core5.http.ProtocolException;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.io.entity.StringEntity;
-import org.apache.hc.core5.util.TimeValue;
-import org.apache.hc.core5.util.Timeout;
 
 import java.io.IOException;
 import java.net.URI;
@@ -33,7 +32,11 @@ public class FolioWriting {
     private static final String folioTenant;
     private static final int folioWriteBatchSize;
 
-    private static List<Map> batch = new ArrayList<>();
+    // Keyed by instance HRID. Several of our root records (items) can belong to the same instance, and they all produce
+    // the same instance (with all holdings, or all changed holdings), so these are folded into one write. A record
+    // without an instance HRID is not folded into anything, but keyed by an object of its own.
+    private static LinkedHashMap<Object, ObjectNode> batch = new LinkedHashMap<>();
+    private static long coalescedWrites = 0;
     private static Deque<BatchWriteResult> writeResultsToFinalize = new ArrayDeque<>();
     private static ArrayList<Thread> writerThreads = new ArrayList<>(100);
 
@@ -58,16 +61,13 @@ public class FolioWriting {
                 return folioToken;
 
             for (int i = 0; i < 10; ++i) {
-                try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+                try {
                     URI uri = new URI(folioBaseUri);
                     uri = uri.resolve("/authn/login-with-expiry");
                     var requestBodyMap = Map.of("tenant", folioTenant, "username", username, "password", password);
                     String requestBody = Storage.mapper.writeValueAsString(requestBodyMap);
 
                     HttpPost request = new HttpPost(uri);
-                    RequestConfig config = RequestConfig.custom()
-                            .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-                    request.setConfig(config);
                     request.setHeader("X-Okapi-Tenant", folioTenant);
                     request.setHeader("Accept", "application/json");
                     request.setHeader("Content-type", "application/json");
@@ -75,26 +75,28 @@ public class FolioWriting {
                     StringEntity entity = new StringEntity(requestBody);
                     request.setEntity(entity);
 
-                    ClassicHttpResponse response = httpClient.execute(request);
-                    Header[] headers = response.getHeaders();
-                    for (Header header : headers) {
-                        if (header.getValue().startsWith("folioAccessToken")) {
-
-                            // We will need the token max age.
-                            String[] parts = header.getValue().split(";"); // Separate cookie parts
-                            for (int j = 0; j < parts.length; ++j) {
-                                if (parts[j].trim().startsWith("Max-Age=")) {
-                                    String maxAgeSeconds = parts[j].substring(9);
-                                    folioTokenValidUntil = Long.parseLong(maxAgeSeconds) * 1000 + System.currentTimeMillis() - 60000; // Keep a 1 minute margin
+                    try (ClassicHttpResponse response = Http.getClient().execute(request)) {
+                        Header[] headers = response.getHeaders();
+                        for (Header header : headers) {
+                            if (header.getValue().startsWith("folioAccessToken")) {
+
+                                // We will need the token max age.
+                                String[] parts = header.getValue().split(";"); // Separate cookie parts
+                                for (int j = 0; j < parts.length; ++j) {
+                                    if (parts[j].trim().startsWith("Max-Age=")) {
+                                        String maxAgeSeconds = parts[j].substring(9);
+                                        folioTokenValidUntil = Long.parseLong(maxAgeSeconds) * 1000 + System.currentTimeMillis() - 60000; // Keep a 1 minute margin
+                                    }
                                 }
-                            }
 
-                            folioToken = header.getValue();
-                            return folioToken;
+                                folioToken = header.getValue();
+                                EntityUtils.consume(response.getEntity());
+                                return folioToken;
+                            }
                         }
-                    }
 
-                    Storage.log("Unexpected FOLIO login response: " + EntityUtils.toString(response.getEntity()) + " / " + Arrays.toString(response.getHeaders()));
+                        Storage.log("Unexpected FOLIO login response: " + EntityUtils.toString(response.getEntity()) + " / " + Arrays.toString(response.getHeaders()));
+                    }
                 } catch (IOException | URISyntaxException | ProtocolException e) {
                     Storage.log("No token.", e);
                     try {
@@ -113,27 +115,25 @@ public class FolioWriting {
         String token = getToken();
 
         for (int i = 0; i < 20; ++i) {
-            try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+            try {
 
                 URI uri = new URI(folioBaseUri);
                 uri = uri.resolve(pathAndParameters);
                 HttpGet request = new HttpGet(uri);
-                RequestConfig config = RequestConfig.custom()
-                        .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-                request.setConfig(config);
 
                 request.setHeader("X-Okapi-Tenant", folioTenant);
                 request.setHeader("Accept", "application/json");
                 request.setHeader("Cookie", token);
 
-                ClassicHttpResponse response = httpClient.execute(request);
-                String responseText = EntityUtils.toString(response.getEntity());
+                try (ClassicHttpResponse response = Http.getClient().execute(request)) {
+                    String responseText = EntityUtils.toString(response.getEntity());
 
-                if (response.getCode() != 200) {
-                    Storage.log("Failed FOLIO lookup: " + response);
-                    return null;
+                    if (response.getCode() != 200) {
+                        Storage.log("Failed FOLIO lookup: " + response);
+                        return null;
+                    }
+                    return responseText;
                 }
-                return responseText;
             } catch (IOException | URISyntaxException | ParseException e) {
                 try {
                     Thread.sleep(1000);
@@ -146,24 +146,65 @@ public class FolioWriting {
         throw new IOException("Unable to complete request: " + pathAndParameters);
     }
 
-    public static synchronized void queueForExport(Map _folioRecord, Connection connection) throws IOException, InterruptedException, SQLException {
+    /**
+     * Queue a formatted record for writing. With onlyChangedHoldings, the record holds only some of the holdings of
+     * the instance, and FOLIO is told to leave the others as they are (rather than deleting them).
+     */
+    public static synchronized void queueForExport(ObjectNode _folioRecord, boolean onlyChangedHoldings, Connection connection) throws IOException, InterruptedException, SQLException {
         // Make a copy, as we will be making some slight changes in there
-        HashMap folioRecord = new HashMap(_folioRecord);
+        ObjectNode folioRecord = _folioRecord.objectNode();
+        folioRecord.setAll(_folioRecord);
 
         // We want to send holding records, without items, but without deleting existing items.
-        folioRecord.put("processing",
-                        Map.of("item",
-                                Map.of("retainOmittedRecord",
-                                        Map.of("ifField", "hrid", "matchesPattern", ".*"))
-                        ));
-
-        batch.add(folioRecord);
+        ObjectNode processing = folioRecord.putObject("processing");
+        processing.putObject("item").putObject("retainOmittedRecord").put("ifField", "hrid").put("matchesPattern", ".*");
+        if (onlyChangedHoldings)
+            processing.putObject("holdingsRecord").putObject("retainOmittedRecord").put("ifField", "hrid").put("matchesPattern", ".*");
+
+        String instanceHRID = getInstanceHRID(folioRecord);
+        if (instanceHRID == null) {
+            batch.put(new Object(), folioRecord);
+        } else {
+            ObjectNode queued = batch.get(instanceHRID);
+            if (queued != null) {
+                ++coalescedWrites;
+                if (onlyChangedHoldings)
+                    folioRecord = mergeChangedHoldings(queued, folioRecord);
+            }
+            batch.put(instanceHRID, folioRecord);
+        }
 
         if (batch.size() >= folioWriteBatchSize) { // Too large batches results in internal http 414 in folio.
             flushQueue(connection);
         }
     }
 
+    /**
+     * Fold a record with only changed holdings into one queued earlier for the same instance, which may have been
+     * either whole or partial (and stays that way).
+     */
+    private static ObjectNode mergeChangedHoldings(ObjectNode queued, ObjectNode changed) {
+        ObjectNode merged = queued.objectNode();
+        merged.setAll(queued);
+        merged.set("instance", changed.get("instance"));
+        if (changed.has("instanceRelations"))
+            merged.set("instanceRelations", changed.get("instanceRelations"));
+        ArrayNode holdings = merged.putArray("holdingsRecords");
+        holdings.addAll((ArrayNode) queued.get("holdingsRecords"));
+        for (JsonNode holding : changed.get("holdingsRecords")) {
+            for (int i = holdings.size() - 1; i >= 0; --i) {
+                if (holdings.get(i).path("hrid").equals(holding.path("hrid")))
+                    holdings.remove(i);
+            }
+            holdings.add(holding);
+        }
+        return merged;
+    }
+
+    private static String getInstanceHRID(ObjectNode folioRecord) {
+        return folioRecord.path("instance").path("hrid").textValue();
+    }
+
     /*
     This is a huge complication, due to the fact that we have to "create items" in folio, but only once, after the
     creation of a holding record. This is very att odds with the rest of the system, which is built to *keep things
@@ -186,33 +227,26 @@ public class FolioWriting {
     from here, and then clear all of the associated holdingIDs from 'holding_creations', so that we only create these
     items exactly once.
      */
-    private static HashMap<String, ArrayList<String>> clearItemsUnlessAllowed(List<Map> recordsToBeWritten, Connection connection) throws SQLException {
+    private static HashMap<String, ArrayList<String>> clearItemsUnlessAllowed(List<ObjectNode> recordsToBeWritten, Connection connection) throws SQLException {
         var instanceHRIDsToHoldingsHRIDsWithItems = new HashMap<String, ArrayList<String>>();
-        for (Map recordToBeWritten : recordsToBeWritten) {
+        for (ObjectNode recordToBeWritten : recordsToBeWritten) {
 
             ArrayList<String> holdingHRIDsWithItems = new ArrayList<>();
-            String instanceHRID = (String) ((Map)recordToBeWritten.get("instance")).get("hrid");
+            String instanceHRID = getInstanceHRID(recordToBeWritten);
             instanceHRIDsToHoldingsHRIDsWithItems.put(instanceHRID, holdingHRIDsWithItems);
 
-            if (recordToBeWritten.containsKey("holdingsRecords")) {
-                for (Map folioHolding : (List<Map>) recordToBeWritten.get("holdingsRecords")) {
+            if (recordToBeWritten.has("holdingsRecords")) {
+                for (JsonNode holding : recordToBeWritten.get("holdingsRecords")) {
+                    if (!(holding instanceof ObjectNode folioHolding))
+                        continue;
 
-                    boolean shouldCreateItems = false;
-                    try (PreparedStatement statement = connection.prepareStatement("SELECT hrid FROM holding_creations WHERE hrid = ?")) {
-                        statement.setString(1, (String) folioHolding.get("hrid"));
-                        statement.execute();
-                        try (ResultSet resultSet = statement.getResultSet()) {
-                            if (resultSet.next()) {
-                                shouldCreateItems = true;
-                            }
-                        }
-                    }
+                    boolean shouldCreateItems = isAwaitingItemCreation(folioHolding.path("hrid").textValue(), connection);
                     if (!shouldCreateItems) {
                         folioHolding.remove("items");
                         //Storage.log("Filtering items of " + folioHolding.get("hrid") + " because no found creation-event.");
-                    } else if (folioHolding.get("items") != null) {
-                        Storage.log("Allowing the creation of " + ( (List) folioHolding.get("items") ).size() + " items for " + folioHolding.get("hrid"));
-                        String holdingHRID = (String) folioHolding.get("hrid");
+                    } else if (folioHolding.hasNonNull("items")) {
+                        Storage.log("Allowing the creation of " + folioHolding.get("items").size() + " items for " + folioHolding.path("hrid").textValue());
+                        String holdingHRID = folioHolding.path("hrid").textValue();
                         holdingHRIDsWithItems.add(holdingHRID);
                     }
                 }
@@ -221,6 +255,16 @@ public class FolioWriting {
         return instanceHRIDsToHoldingsHRIDsWithItems;
     }
 
+    public static boolean isAwaitingItemCreation(String holdingHRID, Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT hrid FROM holding_creations WHERE hrid = ?")) {
+            statement.setString(1, holdingHRID);
+            statement.execute();
+            try (ResultSet resultSet = statement.getResultSet()) {
+                return resultSet.next();
+            }
+        }
+    }
+
     private static String getNextBarCode(CloseableHttpClient httpClient, String token) throws IOException, URISyntaxException, ParseException {
 
         //  https://okapi-folio-snapshot.okd-kv.kb.se/servint/numberGenerators/getNextNumber?generator=inventory_itemBarcode&sequence=itemBarcode
@@ -228,16 +272,15 @@ public class FolioWriting {
         URI uri = new URI(folioBaseUri);
         uri = uri.resolve("/servint/numberGenerators/getNextNumber?generator=inventory_itemBarcode&sequence=itemBarcode");
         HttpGet request = new HttpGet(uri);
-        RequestConfig config = RequestConfig.custom()
-                .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-        request.setConfig(config);
 
         request.setHeader("X-Okapi-Tenant", folioTenant);
         request.setHeader("Accept", "application/json");
         request.setHeader("Cookie", token);
 
-        ClassicHttpResponse response = httpClient.execute(request);
-        String responseText = EntityUtils.toString(response.getEntity());
+        String responseText;
+        try (ClassicHttpResponse response = httpClient.execute(request)) {
+            responseText = EntityUtils.toString(response.getEntity());
+        }
 
         // response looks like so: {"generator":"inventory_itemBarcode","sequence":"itemBarcode","status":"OK","nextValue":"0000000003"}
         Map responseMap = Storage.mapper.readValue(responseText, Map.class);
@@ -247,13 +290,13 @@ public class FolioWriting {
         throw new RuntimeException("Failure getting next barcode from folio. Response was: " + responseText);
     }
 
-    private static void insertBarCodes(CloseableHttpClient httpClient, String token, Object node) throws IOException, URISyntaxException, ParseException {
-        if (node instanceof Map m) {
+    private static void insertBarCodes(CloseableHttpClient httpClient, String token, JsonNode node) throws IOException, URISyntaxException, ParseException {
+        if (node instanceof ObjectNode m) {
 
-            Object keyToReplace = null;
-            for(Object key : m.keySet()) {
-                if (m.get(key).equals("__FOLIO_FETCH_BARCODE"))
-                    keyToReplace = key;
+            String keyToReplace = null;
+            for (Map.Entry<String, JsonNode> field : m.properties()) {
+                if (field.getValue().isTextual() && field.getValue().textValue().equals("__FOLIO_FETCH_BARCODE"))
+                    keyToReplace = field.getKey();
             }
             if (keyToReplace != null) {
                 m.put(keyToReplace, getNextBarCode(httpClient, token));
@@ -261,22 +304,19 @@ public class FolioWriting {
             }
 
             // Move along
-            for(Object key : m.keySet()) {
-                if (m.get(key) != null)
-                    insertBarCodes(httpClient, token, m.get(key));
+            for (JsonNode value : m) {
+                insertBarCodes(httpClient, token, value);
             }
-        } else if (node instanceof List l) {
+        } else if (node instanceof ArrayNode l) {
             for (int i = 0; i < l.size(); ++i) {
-                if (l.get(i) instanceof String s && s.equals("__FOLIO_FETCH_BARCODE")) {
-                    l.remove(i);
-                    l.add(i, getNextBarCode(httpClient, token));
+                if (l.get(i).isTextual() && l.get(i).textValue().equals("__FOLIO_FETCH_BARCODE")) {
+                    l.set(i, getNextBarCode(httpClient, token));
                 }
             }
 
             // Move along
-            for (Object element : l) {
-                if (element != null)
-                    insertBarCodes(httpClient, token, element);
+            for (JsonNode element : l) {
+                insertBarCodes(httpClient, token, element);
             }
         }
     }
@@ -289,14 +329,16 @@ public class FolioWriting {
             HashMap<String, ArrayList<String>> instanceHRIDsToHoldingsHRIDsWithItems
     ) {}
 
-    private static void sendParallell(HashMap<String, ArrayList<String>> instanceHRIDsToHoldingsHRIDsWithItems, List<Map> localBatch) {
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+    private static void sendParallell(HashMap<String, ArrayList<String>> instanceHRIDsToHoldingsHRIDsWithItems, List<ObjectNode> localBatch) {
+        CloseableHttpClient httpClient = Http.getClient();
+        try {
             String token = getToken();
 
             // Fetch barcodes from FOLIO and insert them now (at the last possible instant).
-            insertBarCodes(httpClient, token, localBatch);
+            ObjectNode recordSet = Storage.mapper.createObjectNode();
+            recordSet.putArray("inventoryRecordSets").addAll(localBatch);
+            insertBarCodes(httpClient, token, recordSet);
 
-            Map recordSet = Map.of("inventoryRecordSets", localBatch);
             String body = Storage.mapper.writeValueAsString(recordSet);
 
             //Storage.log(" SENDING: " + body);
@@ -304,9 +346,6 @@ public class FolioWriting {
             URI uri = new URI(folioBaseUri);
             uri = uri.resolve("/inventory-batch-upsert-hrid");
             HttpPut request = new HttpPut(uri);
-            RequestConfig config = RequestConfig.custom()
-                    .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-            request.setConfig(config);
 
             StringEntity entity = new StringEntity(body);
             request.setEntity(entity);
@@ -316,14 +355,18 @@ public class FolioWriting {
             request.setHeader("Content-type", "application/json");
             request.setHeader("Cookie", token);
 
-            ClassicHttpResponse response = httpClient.execute(request);
-            String responseText = EntityUtils.toString(response.getEntity());
+            int responseCode;
+            String responseText;
+            try (ClassicHttpResponse response = httpClient.execute(request)) {
+                responseCode = response.getCode();
+                responseText = EntityUtils.toString(response.getEntity());
+            }
 
             // These two use the same indexing. Meaning errorShortMessagesInBatch[5] refers to the message received for failedHridsInBatch[5]
             List<String> failedHridsInBatch = new ArrayList<>();
             List<String> errorMessagesInBatch = new ArrayList<>();
 
-            if (response.getCode() == 207) { // "Multi-status", mixed response. We need to figure out which records went bad
+            if (responseCode == 207) { // "Multi-status", mixed response. We need to figure out which records went bad
                 Storage.log("Sent the following request body to FOLIO, which resulted in a 207 response code (partial rejection): " + body);
 
                 // Need to parse error message per record tried: /errors/N/entity/hrid
@@ -353,12 +396,12 @@ public class FolioWriting {
                     }
                 }
 
-            } else if (response.getCode() != 200) {
+            } else if (responseCode != 200) {
 
                 // If neither 200 nor 207, something else (unknown) has happened. This could be things like network problems,
                 // downtimes, or something else entirely. We cannot proceed without a retry.
 
-                Storage.log("Failed FOLIO write: " + response + " / " + responseText);
+                Storage.log("Failed FOLIO write: " + responseCode + " / " + responseText);
                 writeResultsToFinalize.push(new BatchWriteResult(false, null, null, null, null));
                 return;
             }
@@ -367,8 +410,8 @@ public class FolioWriting {
 
             // Write was more or less OK (partially or completely)!
             List<String> writtenIDs = new ArrayList<>();
-            for (Map record : localBatch) {
-                writtenIDs.add( (String) ((Map)record.get("instance")).get("hrid") );
+            for (ObjectNode record : localBatch) {
+                writtenIDs.add( getInstanceHRID(record) );
             }
             writtenIDs.removeAll(failedHridsInBatch);
             if (failedHridsInBatch.isEmpty()) {
@@ -470,18 +513,23 @@ public class FolioWriting {
         return true;
     }
 
+    public static synchronized long getCoalescedWrites() {
+        return coalescedWrites;
+    }
+
     public static synchronized void flushQueue(Connection connection) throws IOException, InterruptedException, SQLException {
         if (batch.isEmpty())
             return;
 
-        HashMap<String, ArrayList<String>> instanceHRIDsToHoldingsHRIDsWithItems = clearItemsUnlessAllowed(batch, connection);
+        List<ObjectNode> localBatch = new ArrayList<>(batch.values());
+        HashMap<String, ArrayList<String>> instanceHRIDsToHoldingsHRIDsWithItems = clearItemsUnlessAllowed(localBatch, connection);
 
         //Storage.log("BATCH FIRST:  " + Storage.mapper.writeValueAsString( batch.getFirst() ) );
         // TEMP: DO NOT ACTUALLY WRITE ANYTHING!
         /*if (1 == 1) {
             List<String> writtenIDs = new ArrayList<>();
-            for (Map record : batch) {
-                writtenIDs.add( (String) ((Map)record.get("instance")).get("hrid") );
+            for (ObjectNode record : localBatch) {
+                writtenIDs.add( getInstanceHRID(record) );
             }
             Storage.log("[WOULD HAVE] Written (but not live) " + batch.size() + " records to FOLIO: " + writtenIDs);
             batch.clear();
@@ -490,9 +538,6 @@ public class FolioWriting {
         // REMOVE THIS
 
         //Storage.log("Starting write thread with: " + batch.size() + " records.");
-        List<Map> localBatch = new ArrayList<>(batch.size());
-        localBatch.addAll(batch);
-
 
         Thread t = Thread.startVirtualThread(() -> sendParallell(instanceHRIDsToHoldingsHRIDsWithItems, localBatch));
         writerThreads.add(t);
@@ -12,22 +12,19 @@ import java.sql.SQLException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.function.Consumer;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.schibsted.spt.data.jslt.Function;
 import com.schibsted.spt.data.jslt.Parser;
 import com.schibsted.spt.data.jslt.Expression;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.ParseException;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
-import org.apache.hc.core5.util.TimeValue;
-import org.apache.hc.core5.util.Timeout;
 
 public class Format {
 
@@ -44,7 +41,19 @@ public class Format {
 
     public static Map<String, String> guidReverseLookup = new HashMap<>();
 
-    private static List<Consumer<Object>> lookupFunctions = new ArrayList<>();
+    // Every lookup table, by its lookup code (the key marking a value to be looked up, in the output of the conversions).
+    // The order is that in which the tables were populated, which is the order they used to be applied in, one at a time.
+    private record LookupTable(int order, Map<String, String> nameToGuid) {}
+    private record Resolved(int order, TextNode guid) {}
+    private static final Map<String, LookupTable> lookupTables = new HashMap<>();
+
+    // Bump this whenever a change to formatForFolio (or anything it calls) changes its output, so that every record
+    // is formatted anew (see getFormattingVersion).
+    private static final long formattingCodeVersion = 1;
+
+    // A hash of all the lookup tables, and of the lookup tables plus the conversions currently in use.
+    private static long lookupTablesHash = 0xcbf29ce484222325L;
+    private static volatile long formattingVersion = 0;
     static {
         try {
 
@@ -229,16 +238,82 @@ public class Format {
             guidReverseLookup.put((String)element.get("id"), (String)element.get(property));
         }
 
-        lookupFunctions.add( o -> jsltFolioLookup(o, lookupCode, nameToGuidResult) );
+        lookupTablesHash = hash(lookupTablesHash, lookupCode);
+        List<String> names = new ArrayList<>(nameToGuidResult.keySet());
+        names.sort(Comparator.nullsFirst(Comparator.naturalOrder()));
+        for (String name : names) {
+            lookupTablesHash = hash(hash(lookupTablesHash, name), nameToGuidResult.get(name));
+        }
+
+        lookupTables.put(lookupCode, new LookupTable(lookupTables.size(), nameToGuidResult));
         if (verbose) {
             Storage.log("into:\n" + nameToGuidResult);
         }
     }
 
-    private static void jsltFolioLookups(Object node) {
-        for (var c : lookupFunctions) {
-            c.accept(node);
+    /**
+     * Replace every lookup marker in the tree, that is every map like {"__FOLIO_LOOKUP_LOCATION_GUID": "name"}, with
+     * the GUID it names, in a single pass. Markers naming something unknown are left as they are.
+     *
+     * The result is the same as that of applying the lookup tables one at a time, in order, as was once done: Of the
+     * markers in the same list (or map) resolved through the same table, only the last GUID is kept, and it is moved
+     * to the end of the list (or map).
+     */
+    private static void jsltFolioLookups(JsonNode node) {
+        if (node instanceof ObjectNode object) {
+            TreeMap<Integer, Map.Entry<String, TextNode>> kept = null;
+            for (Iterator<Map.Entry<String, JsonNode>> it = object.properties().iterator(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> field = it.next();
+                Resolved resolved = resolveLookup(field.getValue());
+                if (resolved == null) {
+                    jsltFolioLookups(field.getValue());
+                    continue;
+                }
+                if (kept == null)
+                    kept = new TreeMap<>();
+                kept.put(resolved.order, Map.entry(field.getKey(), resolved.guid));
+                it.remove();
+            }
+            if (kept != null) {
+                for (Map.Entry<String, TextNode> field : kept.values()) {
+                    object.set(field.getKey(), field.getValue());
+                }
+            }
+        } else if (node instanceof ArrayNode array) {
+            TreeMap<Integer, TextNode> kept = null;
+            for (int i = 0; i < array.size(); ++i) {
+                Resolved resolved = resolveLookup(array.get(i));
+                if (resolved == null) {
+                    jsltFolioLookups(array.get(i));
+                    continue;
+                }
+                if (kept == null)
+                    kept = new TreeMap<>();
+                kept.put(resolved.order, resolved.guid);
+                array.remove(i--);
+            }
+            if (kept != null) {
+                for (TextNode guid : kept.values()) {
+                    array.add(guid);
+                }
+            }
+        }
+    }
+
+    // The GUID of a marker, through the first table (in order) that knows the name it gives.
+    private static Resolved resolveLookup(JsonNode node) {
+        Resolved first = null;
+        if (node instanceof ObjectNode object) {
+            for (Map.Entry<String, JsonNode> field : object.properties()) {
+                LookupTable lookupTable = lookupTables.get(field.getKey());
+                if (lookupTable == null || (first != null && first.order < lookupTable.order))
+                    continue;
+                String guid = lookupTable.nameToGuid.get(field.getValue().asText());
+                if (guid != null)
+                    first = new Resolved(lookupTable.order, TextNode.valueOf(guid));
+            }
         }
+        return first;
     }
 
     public static boolean lookupJsltConversions() {
@@ -253,26 +328,25 @@ public class Format {
         String itemJsltUrl = System.getenv("ITEM_JSLT_URL");
         String writebackJsltUrl = System.getenv("LIBRIS_WRITEBACK_JSLT_URL");
 
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+        CloseableHttpClient httpClient = Http.getClient();
+        try {
 
             // Get instance conversion
             {
                 URI uri = new URI(instanceJsltUrl);
                 HttpGet request = new HttpGet(uri);
-                RequestConfig config = RequestConfig.custom()
-                        .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-                request.setConfig(config);
-                ClassicHttpResponse response = httpClient.execute(request);
-                String responseText = EntityUtils.toString(response.getEntity());
-                if (response.getCode() != 200) {
-                    Storage.log("Failed JSLT (instance) lookup: " + response);
-                    return false;
-                }
+                try (ClassicHttpResponse response = httpClient.execute(request)) {
+                    String responseText = EntityUtils.toString(response.getEntity());
+                    if (response.getCode() != 200) {
+                        Storage.log("Failed JSLT (instance) lookup: " + response);
+                        return false;
+                    }
 
-                if (responseText != null) {
-                    if (instanceJsltConversion == null || !instanceJsltConversion.equals(responseText)) {
-                        instanceJsltConversion = responseText;
-                        Storage.log("Obtained a new set of conversion rules (instance).");
+                    if (responseText != null) {
+                        if (instanceJsltConversion == null || !instanceJsltConversion.equals(responseText)) {
+                            instanceJsltConversion = responseText;
+                            Storage.log("Obtained a new set of conversion rules (instance).");
+                        }
                     }
                 }
             }
@@ -281,20 +355,18 @@ public class Format {
             {
                 URI uri = new URI(holdingJsltUrl);
                 HttpGet request = new HttpGet(uri);
-                RequestConfig config = RequestConfig.custom()
-                        .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-                request.setConfig(config);
-                ClassicHttpResponse response = httpClient.execute(request);
-                String responseText = EntityUtils.toString(response.getEntity());
-                if (response.getCode() != 200) {
-                    Storage.log("Failed JSLT (holding) lookup: " + response);
-                    return false;
-                }
+                try (ClassicHttpResponse response = httpClient.execute(request)) {
+                    String responseText = EntityUtils.toString(response.getEntity());
+                    if (response.getCode() != 200) {
+                        Storage.log("Failed JSLT (holding) lookup: " + response);
+                        return false;
+                    }
 
-                if (responseText != null) {
-                    if (holdingJsltConversion == null || !holdingJsltConversion.equals(responseText)) {
-                        holdingJsltConversion = responseText;
-                        Storage.log("Obtained a new set of conversion rules (holding).");
+                    if (responseText != null) {
+                        if (holdingJsltConversion == null || !holdingJsltConversion.equals(responseText)) {
+                            holdingJsltConversion = responseText;
+                            Storage.log("Obtained a new set of conversion rules (holding).");
+                        }
                     }
                 }
             }
@@ -303,20 +375,18 @@ public class Format {
             {
                 URI uri = new URI(itemJsltUrl);
                 HttpGet request = new HttpGet(uri);
-                RequestConfig config = RequestConfig.custom()
-                        .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-                request.setConfig(config);
-                ClassicHttpResponse response = httpClient.execute(request);
-                String responseText = EntityUtils.toString(response.getEntity());
-                if (response.getCode() != 200) {
-                    Storage.log("Failed JSLT (item) lookup: " + response);
-                    return false;
-                }
+                try (ClassicHttpResponse response = httpClient.execute(request)) {
+                    String responseText = EntityUtils.toString(response.getEntity());
+                    if (response.getCode() != 200) {
+                        Storage.log("Failed JSLT (item) lookup: " + response);
+                        return false;
+                    }
 
-                if (responseText != null) {
-                    if (itemJsltConversion == null || !itemJsltConversion.equals(responseText) ) {
-                        itemJsltConversion = responseText;
-                        Storage.log("Obtained a new set of conversion rules (item).");
+                    if (responseText != null) {
+                        if (itemJsltConversion == null || !itemJsltConversion.equals(responseText) ) {
+                            itemJsltConversion = responseText;
+                            Storage.log("Obtained a new set of conversion rules (item).");
+                        }
                     }
                 }
             }
@@ -325,20 +395,18 @@ public class Format {
             {
                 URI uri = new URI(writebackJsltUrl);
                 HttpGet request = new HttpGet(uri);
-                RequestConfig config = RequestConfig.custom()
-                        .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-                request.setConfig(config);
-                ClassicHttpResponse response = httpClient.execute(request);
-                String responseText = EntityUtils.toString(response.getEntity());
-                if (response.getCode() != 200) {
-                    Storage.log("Failed JSLT (writeback) lookup: " + response);
-                    return false;
-                }
+                try (ClassicHttpResponse response = httpClient.execute(request)) {
+                    String responseText = EntityUtils.toString(response.getEntity());
+                    if (response.getCode() != 200) {
+                        Storage.log("Failed JSLT (writeback) lookup: " + response);
+                        return false;
+                    }
 
-                if (responseText != null) {
-                    if (librisWritebackJsltConversion == null || !librisWritebackJsltConversion.equals(responseText) ) {
-                        librisWritebackJsltConversion = responseText;
-                        Storage.log("Obtained a new set of conversion rules (writeback).");
+                    if (responseText != null) {
+                        if (librisWritebackJsltConversion == null || !librisWritebackJsltConversion.equals(responseText) ) {
+                            librisWritebackJsltConversion = responseText;
+                            Storage.log("Obtained a new set of conversion rules (writeback).");
+                        }
                     }
                 }
             }
@@ -348,6 +416,12 @@ public class Format {
             holdingJSLT = Parser.compileString(holdingJsltConversion, functions);
             itemsJSLT = Parser.compileString(itemJsltConversion, functions);
 
+            long version = hash(lookupTablesHash, "" + formattingCodeVersion);
+            version = hash(version, instanceJsltConversion);
+            version = hash(version, holdingJsltConversion);
+            version = hash(version, itemJsltConversion);
+            formattingVersion = version;
+
         } catch (IOException | URISyntaxException | ParseException e) {
             Storage.log("Failed JSLT lookup.", e);
             return false;
@@ -356,14 +430,35 @@ public class Format {
         return true;
     }
 
+    /**
+     * Identifies everything, other than the Libris data itself, that goes into formatForFolio: The conversions, the
+     * lookup tables and the formatting code. If this changes, the same Libris data may well be formatted differently.
+     */
+    public static long getFormattingVersion() {
+        return formattingVersion;
+    }
+
+    // 64-bit FNV-1a over the UTF-16 chars of the string, continuing from h.
+    private static long hash(long h, String s) {
+        if (s == null)
+            return h;
+        for (int i = 0; i < s.length(); ++i) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
     private static List<Map> getHoldings(String mainEntityUri, Connection connection) throws SQLException, IOException {
         String sql = """
                 SELECT
-                	entities.entity
+                	referenced_uris.entity_id
                 FROM
-                	referenced_uris LEFT JOIN entities ON referenced_uris.entity_id = entities.id
+                	uris
+                JOIN
+                	referenced_uris ON referenced_uris.uri_id = uris.id
                 WHERE
-                	referenced_uri = ?;
+                	uris.uri = ?;
                 """;
 
         List<Map> items = new ArrayList<>();
@@ -372,62 +467,15 @@ public class Format {
             statement.execute();
             try (ResultSet resultSet = statement.getResultSet()) {
                 if (resultSet.next()) {
-                    String data = resultSet.getString(1);
-                    Map holdingMap = Storage.mapper.readValue(data, Map.class);
-                    items.add(holdingMap);
+                    Map holdingMap = Records.loadEntityById(resultSet.getLong(1), connection);
+                    if (holdingMap != null)
+                        items.add(holdingMap);
                 }
             }
         }
         return items;
     }
 
-    private static String jsltFolioLookup(Object node, String JSLTKey, Map<String, String> lookupMap) {
-        if (node instanceof Map) {
-            Map map = (Map) node;
-
-            if (map.containsKey(JSLTKey)) {
-                return lookupMap.get( (String) map.get(JSLTKey) );
-            }
-
-            String removedKey = null;
-            String guid = null;
-            Iterator it = map.keySet().iterator();
-            while (it.hasNext()) {
-                String key = (String) it.next();
-                String result = jsltFolioLookup(map.get(key), JSLTKey, lookupMap);
-                if (result != null) {
-                    guid = result;
-                    it.remove();
-                    removedKey = key;
-                    //Storage.log(" ** REMOVING KEY: " + removedKey + " due to replacement with: " + guid);
-                }
-            }
-            if (guid != null) {
-                map.put(removedKey, guid);
-                //Storage.log(" ** RE-ADDING KEY: " + removedKey + " with value: " + guid);
-            }
-
-        } else if (node instanceof List) {
-            List list = (List) node;
-            String guid = null;
-            Iterator it =  list.iterator();
-            while (it.hasNext()) {
-                Object element = it.next();
-
-                String result = jsltFolioLookup(element, JSLTKey, lookupMap);
-                if (result != null) {
-                    guid = result;
-                    it.remove();
-                }
-            }
-            if (guid != null) {
-                list.add(guid);
-            }
-        }
-
-        return null;
-    }
-
     public static class ExposedDecodeFunction implements Function {
         public String getName() {
             return "urldecode";
@@ -447,7 +495,14 @@ public class Format {
         }
     }
 
-    public static Map formatForFolio(Map originalRootHolding, Connection connection) throws SQLException, IOException {
+    /**
+     * Format a root record (one of our holdings, with its itemOf embellished) for FOLIO, as an inventory record set:
+     * {"instance": {...}, "holdingsRecords": [...], "instanceRelations": {...}}.
+     *
+     * The result is a Jackson tree, as that is what the conversions produce, and it is only ever checksummed and
+     * serialized from here on (see StructuralChecksum and FolioWriting).
+     */
+    public static ObjectNode formatForFolio(Map originalRootHolding, Connection connection) throws SQLException, IOException {
 
         Map originalMainEntity = (Map) originalRootHolding.get("itemOf");
 
@@ -458,7 +513,7 @@ public class Format {
         mainEntityWithReverse.put("@reverse", reverseItemOfList);
 
         List<Map> allLibrisHoldings = getHoldings( (String) originalMainEntity.get("@id"), connection);
-        List<Map> folioHoldings = new ArrayList<>(allLibrisHoldings.size());
+        ArrayNode folioHoldings = Storage.mapper.createArrayNode();
 
         for (Map item : allLibrisHoldings) {
             Map originalItem = new HashMap();
@@ -467,20 +522,17 @@ public class Format {
 
             // embed the instance, to make instance-info available during JSLT-transform.
             //item.put("itemOf", originalMainEntity);
-            Records.embellishWithLocalData(item, new HashSet<>(), connection);
+            Records.embellishWithLocalData(item, connection);
 
             //Storage.log(" CONVERTING ITEM, WITH INPUT LIKE SO:\n" + Storage.mapper.writeValueAsString(item) + "\n-----");
 
             JsonNode holdingsJsonNodeOriginal = Storage.mapper.valueToTree(item);
-            JsonNode holdingsJsonNodeTransformed = holdingJSLT.apply(holdingsJsonNodeOriginal);
-            Map folioHolding = Storage.mapper.treeToValue(holdingsJsonNodeTransformed, Map.class);
+            JsonNode folioHolding = holdingJSLT.apply(holdingsJsonNodeOriginal);
 
-            List<Map> folioItems = new ArrayList<>();
-            if (item.containsKey("hasComponent")) {
+            if (item.containsKey("hasComponent") && folioHolding instanceof ObjectNode holdingObject) {
                 JsonNode itemsJsonNodeTransformed = itemsJSLT.apply(holdingsJsonNodeOriginal);
                 //Storage.log(Storage.mapper.writeValueAsString(itemsJsonNodeTransformed));
-                folioItems.addAll(Storage.mapper.treeToValue(itemsJsonNodeTransformed, List.class));
-                folioHolding.put("items", folioItems);
+                holdingObject.set("items", itemsJsonNodeTransformed.isArray() ? itemsJsonNodeTransformed : Storage.mapper.createArrayNode());
             }
 
             folioHoldings.add( folioHolding );
@@ -489,34 +541,26 @@ public class Format {
 
         //Storage.log("To convert instance, should contain reverse itemOfs:\n" + Storage.mapper.writeValueAsString(mainEntityWithReverse));
         JsonNode instanceJsonNodeOriginal = Storage.mapper.valueToTree(mainEntityWithReverse);
-        JsonNode instanceJsonNodeTransformed = instanceJSLT.apply(instanceJsonNodeOriginal);
-        Map jsltModifiedInstance = Storage.mapper.treeToValue(instanceJsonNodeTransformed, Map.class);
+        JsonNode jsltModifiedInstance = instanceJSLT.apply(instanceJsonNodeOriginal);
         jsltFolioLookups(jsltModifiedInstance);
 
-        Map converted = new HashMap();
-        converted.put("instance", jsltModifiedInstance);
+        ObjectNode converted = Storage.mapper.createObjectNode();
+        converted.set("instance", jsltModifiedInstance);
 
         // No holdings? Empty list, not null!
-        if (folioHoldings == null)
-            folioHoldings = new ArrayList();
-
-        converted.put("holdingsRecords", folioHoldings);
+        converted.set("holdingsRecords", folioHoldings);
 
         // instance relations
-        if (jsltModifiedInstance.containsKey("succeedingTitles") || jsltModifiedInstance.containsKey("precedingTitles")) {
-            Map instanceRelations = new HashMap();
-            if (jsltModifiedInstance.containsKey("succeedingTitles")) {
-                instanceRelations.put("succeedingTitles", jsltModifiedInstance.get("succeedingTitles"));
+        if (jsltModifiedInstance instanceof ObjectNode instance && (instance.has("succeedingTitles") || instance.has("precedingTitles"))) {
+            ObjectNode instanceRelations = converted.putObject("instanceRelations");
+            if (instance.has("succeedingTitles")) {
+                instanceRelations.set("succeedingTitles", instance.remove("succeedingTitles"));
             }
-            if (jsltModifiedInstance.containsKey("precedingTitles")) {
-                instanceRelations.put("precedingTitles", jsltModifiedInstance.get("precedingTitles"));
+            if (instance.has("precedingTitles")) {
+                instanceRelations.set("precedingTitles", instance.remove("precedingTitles"));
             }
-            converted.put("instanceRelations", instanceRelations);
         }
 
-        jsltModifiedInstance.remove("precedingTitles");
-        jsltModifiedInstance.remove("succeedingTitles");
-
         //Storage.log(" ** CONVERTED INTO: " + converted);
 
         return converted;
@@ -0,0 +1,70 @@
+package se.kb.libris.foliointegration;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+/**
+ * The one HTTP client used for all outbound traffic (Libris, EMM, id.kb.se, FOLIO and the JSLT files).
+ *
+ * Connections are pooled per host and kept alive between requests, so that we do not pay a new TCP+TLS
+ * handshake for every single request. The client is thread safe and must never be closed by callers. Callers
+ * must however always close (or fully consume) the responses they get, or the connection will not be returned
+ * to the pool.
+ */
+public class Http {
+
+    private static final int maxConnectionsTotal = getIntParameter("HTTP_MAX_CONNECTIONS", 128);
+    private static final int maxConnectionsPerHost = getIntParameter("HTTP_MAX_CONNECTIONS_PER_HOST", 32);
+    private static final int connectTimeoutSeconds = getIntParameter("HTTP_CONNECT_TIMEOUT_SECONDS", 10);
+    private static final int responseTimeoutSeconds = getIntParameter("HTTP_RESPONSE_TIMEOUT_SECONDS", 180);
+
+    // How long a request may wait for a free pooled connection. Many (virtual) threads share the pool when
+    // downloading dependencies, so this needs to be fairly generous.
+    private static final int poolWaitTimeoutSeconds = 120;
+
+    private static final CloseableHttpClient client;
+
+    static {
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnectionsTotal)
+                .setMaxConnPerRoute(maxConnectionsPerHost)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofSeconds(connectTimeoutSeconds))
+                        .setSocketTimeout(Timeout.ofSeconds(responseTimeoutSeconds))
+                        .setValidateAfterInactivity(TimeValue.ofSeconds(2))
+                        .setTimeToLive(TimeValue.ofMinutes(10))
+                        .build())
+                .build();
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofSeconds(poolWaitTimeoutSeconds))
+                .setResponseTimeout(Timeout.ofSeconds(responseTimeoutSeconds))
+                .setConnectionKeepAlive(TimeValue.ofSeconds(30))
+                .build();
+
+        client = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofSeconds(30))
+                .disableCookieManagement() // We pass the FOLIO token cookie explicitly, and must never leak cookies between hosts.
+                .build();
+    }
+
+    public static CloseableHttpClient getClient() {
+        return client;
+    }
+
+    private static int getIntParameter(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank())
+            return defaultValue;
+        return Integer.parseInt(value.trim());
+    }
+}
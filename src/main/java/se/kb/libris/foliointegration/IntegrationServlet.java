@@ -148,6 +148,17 @@ public class IntegrationServlet extends HttpServlet {
                 response.sendRedirect("/");
                 break;
             }
+            case "/retraindictionary": {
+                Server.requestRetrainDictionary();
+                // Now WAIT for the changes to take effect before redirecting back to render the page.
+                while (Server.getRequestedRetrainDictionary()) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {/* ignore */}
+                }
+                response.sendRedirect("/");
+                break;
+            }
             case "/shutdown": {
                 Server.requestShutdown();
                 Storage.log("Controlled shutdown manually requested.");
@@ -318,6 +329,12 @@ public class IntegrationServlet extends HttpServlet {
                 s = " <br/><br/>There are currently " + exportFailureCount + " records out of date because they could not be written to FOLIO. <form action='/csvfailures' method='post'><input type='submit' value='Download CSV list'></form>";
                 os.write(s.getBytes(StandardCharsets.UTF_8));
 
+                s = " <br/>Entity cache: " + EntityCache.describe() + "<br/>";
+                os.write(s.getBytes(StandardCharsets.UTF_8));
+
+                s = " <br/>FOLIO writes coalesced (same instance queued more than once in a batch): " + FolioWriting.getCoalescedWrites() + "<br/>";
+                os.write(s.getBytes(StandardCharsets.UTF_8));
+
             } else {
                 String s = "<br/>Odd FOLIO sync state. Shouldn't happen.<br/>";
                 os.write(s.getBytes(StandardCharsets.UTF_8));
@@ -373,6 +390,22 @@ public class IntegrationServlet extends HttpServlet {
             }
         }
 
+        // Entity storage compression
+        {
+            String s = "<hr><br/>Stored entities are encoded as: " + EntityCodec.describeCurrent() + ".<br/><br/>";
+            os.write(s.getBytes(StandardCharsets.UTF_8));
+
+            s = """
+                    <form action="/retraindictionary" method="post">
+                        <label>Train a new compression dictionary on the current data, and recompress all stored entities with it (in the background)</label>
+                        <input type="submit" value="Retrain dictionary">
+                    </form>
+                    """.stripIndent();
+            os.write(s.getBytes(StandardCharsets.UTF_8));
+            s = " <br/><br/>";
+            os.write(s.getBytes(StandardCharsets.UTF_8));
+        }
+
         // Controlled exit
         {
             String s = "<hr><br/>Controlled shutdown (queued for when the system is next at rest).<br/><br/>";
@@ -396,43 +429,19 @@ public class IntegrationServlet extends HttpServlet {
 
         String[] sigelList = System.getenv("SIGEL").split(",");
 
-        String downloadingSigel = Storage.getState(EmmDumpImport.DUMP_SIGEL_KEY, readOnlyConnection);
-        if (downloadingSigel == null)
-            downloadingSigel = "n/a";
-
-        boolean passedActive = false;
-        for (int i = 0; i < sigelList.length; ++i) {
-            if (sigelList[i].equals(downloadingSigel)) {
-                passedActive = true;
-                String totalItemsString = Storage.getState(EmmDumpImport.TOTALITEMS_KEY, readOnlyConnection);
-                String offsetString = Storage.getState(EmmDumpImport.OFFSET_KEY, readOnlyConnection);
-                float progress = 0.0f;
-                if (totalItemsString != null && offsetString != null) {
-                    int totalItems = Integer.parseInt(totalItemsString);
-                    int offset = Integer.parseInt(offsetString);
-                    progress = (float) offset / (float) totalItems;
-                }
-                int percent = (int) (100.0f * progress);
-                String s = "<br/>Downloading EMM dump for sigel: " + downloadingSigel + " <br/>" +
-                        "<label>Progress:</label>" +
-	                    "<progress value=\"" + percent +  "\" max=\"100\"> " + percent +  "% </progress> <br/><br/>";
-
-                os.write(s.getBytes(StandardCharsets.UTF_8));
-            } else {
-                if (passedActive) {
-                    String s = "<br/>Downloading EMM dump for sigel: " + sigelList[i] + " <br/>" +
-                            "<label>Progress:</label>" +
-                            "<progress value=\"0\" max=\"100\"> 0% </progress> <br/><br/>";
-                    os.write(s.getBytes(StandardCharsets.UTF_8));
-                } else {
-                    String s = "<br/>Downloading EMM dump for sigel: " + sigelList[i] + " <br/>" +
-                            "<label>Progress:</label>" +
-                            "<progress value=\"100\" max=\"100\"> 100% </progress> <br/><br/>";
-                    os.write(s.getBytes(StandardCharsets.UTF_8));
-                }
-            }
+        // The dumps are downloaded concurrently, each with its own progress.
+        for (String sigel : sigelList) {
+            int percent = EmmDumpImport.getProgressPercent(sigel, readOnlyConnection);
+            String s = "<br/>Downloading EMM dump for sigel: " + sigel + " <br/>" +
+                    "<label>Progress:</label>" +
+                    "<progress value=\"" + percent +  "\" max=\"100\"> " + percent +  "% </progress> <br/><br/>";
+            os.write(s.getBytes(StandardCharsets.UTF_8));
         }
 
+        String s = "<br/>Page downloads: " + EmmPageFetcher.describe() + "<br/>" +
+                "Dependency downloads: " + DependencyDownloader.describe() + "<br/>";
+        os.write(s.getBytes(StandardCharsets.UTF_8));
+
         os.write(outro.getBytes(StandardCharsets.UTF_8));
     }
 }
@@ -6,16 +6,11 @@ import com.schibsted.spt.data.jslt.Parser;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.classic.methods.HttpPut;
-import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.core5.http.*;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.io.entity.StringEntity;
 import org.apache.hc.core5.http.message.BasicNameValuePair;
-import org.apache.hc.core5.util.TimeValue;
-import org.apache.hc.core5.util.Timeout;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
@@ -353,16 +348,11 @@ public class LibrisWriteBack {
 
     // Returns response (0) and ETAG (1) (or throws)
     private static String[] doLibrisGet(URI uri) throws IOException, ProtocolException {
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+        HttpGet request = new HttpGet(uri);
 
-            HttpGet request = new HttpGet(uri);
-            RequestConfig config = RequestConfig.custom()
-                    .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-            request.setConfig(config);
-
-            request.setHeader("Accept", "application/ld+json");
-            request.setHeader("User-Agent", "FOLIO integration");
-            ClassicHttpResponse response = httpClient.execute(request);
+        request.setHeader("Accept", "application/ld+json");
+        request.setHeader("User-Agent", "FOLIO integration");
+        try (ClassicHttpResponse response = Http.getClient().execute(request)) {
 
             Header etagHeader =  response.getHeader("ETag");
             String etag = null;
@@ -413,23 +403,18 @@ public class LibrisWriteBack {
         final String clientId = System.getenv("LIBRIS_CLIENT_ID");
         final String clientSecret = System.getenv("LIBRIS_CLIENT_SECRET");
 
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-
-            HttpPost request = new HttpPost(loginUrl);
-            RequestConfig config = RequestConfig.custom()
-                    .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-            request.setConfig(config);
+        HttpPost request = new HttpPost(loginUrl);
 
-            request.setHeader("Accept", "application/json");
-            request.setHeader("User-Agent", "FOLIO integration");
+        request.setHeader("Accept", "application/json");
+        request.setHeader("User-Agent", "FOLIO integration");
 
-            final List<NameValuePair> params = new ArrayList<>();
-            params.add(new BasicNameValuePair("client_id", clientId));
-            params.add(new BasicNameValuePair("client_secret", clientSecret));
-            params.add(new BasicNameValuePair("grant_type", "client_credentials"));
-            request.setEntity(new UrlEncodedFormEntity(params));
+        final List<NameValuePair> params = new ArrayList<>();
+        params.add(new BasicNameValuePair("client_id", clientId));
+        params.add(new BasicNameValuePair("client_secret", clientSecret));
+        params.add(new BasicNameValuePair("grant_type", "client_credentials"));
+        request.setEntity(new UrlEncodedFormEntity(params));
 
-            ClassicHttpResponse response = httpClient.execute(request);
+        try (ClassicHttpResponse response = Http.getClient().execute(request)) {
             if (response.getCode() == 200) {
                 String responseText = EntityUtils.toString(response.getEntity());
                 Map responseMap = Storage.mapper.readValue(responseText, Map.class);
@@ -443,22 +428,17 @@ public class LibrisWriteBack {
     }
 
     public static int writeLibrisRecord(String librisUri, Map librisData, String ETag, String authToken, String writingAsSigel) throws IOException, ParseException {
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-
-            HttpPut request = new HttpPut(librisUri);
-            RequestConfig config = RequestConfig.custom()
-                    .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-            request.setConfig(config);
+        HttpPut request = new HttpPut(librisUri);
 
-            request.setHeader("Content-Type", "application/ld+json");
-            request.setHeader("If-Match", ETag);
-            request.setHeader("User-Agent", "FOLIO integration");
-            request.setHeader("XL-Active-Sigel", writingAsSigel);
-            request.setHeader("Authorization", authToken);
+        request.setHeader("Content-Type", "application/ld+json");
+        request.setHeader("If-Match", ETag);
+        request.setHeader("User-Agent", "FOLIO integration");
+        request.setHeader("XL-Active-Sigel", writingAsSigel);
+        request.setHeader("Authorization", authToken);
 
-            request.setEntity(new StringEntity(Storage.mapper.writeValueAsString(librisData)));
+        request.setEntity(new StringEntity(Storage.mapper.writeValueAsString(librisData)));
 
-            ClassicHttpResponse response = httpClient.execute(request);
+        try (ClassicHttpResponse response = Http.getClient().execute(request)) {
             if (response.getCode() == 204) {
                 Storage.log("Wrote to " + librisUri);
             }
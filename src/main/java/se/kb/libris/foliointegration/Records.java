@@ -1,16 +1,11 @@
 package se.kb.libris.foliointegration;
 
 import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.config.RequestConfig;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.ParseException;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.net.URIBuilder;
-import org.apache.hc.core5.util.TimeValue;
-import org.apache.hc.core5.util.Timeout;
 
 import java.io.IOException;
 import java.net.URI;
@@ -24,6 +19,15 @@ import java.util.*;
 public class Records {
     private final static List<String> propertiesOfInterest = Arrays.asList("mainEntity", "instanceOf", "itemOf", "subject", "agent", "contribution", "category", "shelfMark", "hasComponent");
 
+    // The largest number of URIs we ask sqlite about in one query.
+    private final static int maxUrisPerQuery = 500;
+
+    // Set (to "0") when an existing state file gets the derived entity columns added, see backfillDerivedColumns.
+    public final static String DERIVED_COLUMNS_BACKFILLED_TO_ID_KEY = "DerivedColumnsBackfilledUpToID";
+
+    // All entity URIs we have (and possibly a few we no longer have). Built lazily, kept up to date by writeRecord.
+    private static volatile BloomFilter knownUris = null;
+
     /**
      * Import a fetched record. The connection will be written to, but not
      * commited within this function.
@@ -32,43 +36,42 @@ public class Records {
         try {
             long insertedRowId = 0;
             String mainEntityId = (String) mainEntity.get("@id");
-            // Write the entity itself
-            try (PreparedStatement statement = connection.prepareStatement("INSERT OR REPLACE INTO entities(uri, entity, modified) VALUES(?, ?, ?)")) {
-                statement.setString(1, mainEntityId);
-                statement.setString(2, Storage.mapper.writeValueAsString(mainEntity));
-                statement.setLong(3, new Date().toInstant().toEpochMilli());
-                statement.execute();
-            }
 
-            // Get the ROWID of the written entity
-            try (PreparedStatement statement = connection.prepareStatement("SELECT last_insert_rowid()")) {
-                statement.execute();
-                try (ResultSet resultSet = statement.getResultSet()) {
-                    if (!resultSet.next()) {
-                        Storage.logWithCallstack("SQLITE last_insert_rowid() failure. Fatal.");
-                        System.exit(1);
-                    }
-                    insertedRowId = resultSet.getLong(1);
+            // Write the entity itself, and get its ROWID straight back from the insert. Note that "OR REPLACE" always
+            // gives the entity a new ROWID, the old row (and with it, by cascade, its referenced URIs) is deleted.
+            PreparedStatement entityStatement = Storage.getCachedStatement("INSERT OR REPLACE INTO entities(uri, entity, modified, type, held_by, item_of) VALUES(?, ?, ?, ?, ?, ?) RETURNING id", connection);
+            entityStatement.setString(1, mainEntityId);
+            entityStatement.setBytes(2, EntityCodec.encode(mainEntity));
+            entityStatement.setLong(3, new Date().toInstant().toEpochMilli());
+            setDerivedColumns(entityStatement, 4, mainEntity);
+            try (ResultSet resultSet = entityStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    Storage.logWithCallstack("SQLITE insert returned no ROWID. Fatal.");
+                    System.exit(1);
                 }
+                insertedRowId = resultSet.getLong(1);
             }
 
-            // Clear any existing URIs for this record
-            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM referenced_uris WHERE entity_id = ?")) {
-                statement.setLong(1, insertedRowId);
-                statement.execute();
+            if (mainEntityId != null) {
+                getKnownUris(connection).put(mainEntityId);
+                EntityCache.invalidate(mainEntityId);
             }
 
             // Write all URIs that the entity refers to (except itself)
+            PreparedStatement uriStatement = Storage.getCachedStatement("INSERT INTO referenced_uris(uri_id, entity_id) VALUES(?, ?)", connection);
             Set<String> uris = collectUrisReferencedByThisRecord( mainEntity );
+            boolean anyUris = false;
             for (String uri : uris) {
                 if (!uri.equals(mainEntityId)) {
-                    try (PreparedStatement statement = connection.prepareStatement("INSERT INTO referenced_uris(entity_id, referenced_uri) VALUES(?, ?)")) {
-                        statement.setLong(1, insertedRowId);
-                        statement.setString(2, uri);
-                        statement.execute();
-                    }
+                    uriStatement.setLong(1, internUri(uri, connection));
+                    uriStatement.setLong(2, insertedRowId);
+                    uriStatement.addBatch();
+                    anyUris = true;
                 }
             }
+            if (anyUris) {
+                uriStatement.executeBatch();
+            }
 
         } catch (SQLException | IOException e) {
             Storage.log("Could not write record. Fatal. ", e);
@@ -76,6 +79,90 @@ public class Records {
         }
     }
 
+    /**
+     * Get the integer ID of a URI in the uris table, adding it if needed. URIs are never removed from that table
+     * (an unused one is only a few bytes), so a given URI keeps its ID for good.
+     */
+    private static long internUri(String uri, Connection connection) throws SQLException {
+        PreparedStatement select = Storage.getCachedStatement("SELECT id FROM uris WHERE uri = ?", connection);
+        select.setString(1, uri);
+        try (ResultSet resultSet = select.executeQuery()) {
+            if (resultSet.next())
+                return resultSet.getLong(1);
+        }
+        PreparedStatement insert = Storage.getCachedStatement("INSERT INTO uris(uri) VALUES(?) RETURNING id", connection);
+        insert.setString(1, uri);
+        try (ResultSet resultSet = insert.executeQuery()) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    /**
+     * Set the derived columns of entities (type, held_by, item_of), starting at the given parameter index. These
+     * duplicate a few properties of the entity, so that root records can be found without parsing any entities.
+     */
+    private static void setDerivedColumns(PreparedStatement statement, int firstIndex, Map entity) throws SQLException {
+        String type = entity.get("@type") instanceof String s ? s : null;
+
+        String heldBy = null; // The library code (sigel), not the full URI
+        if (entity.get("heldBy") instanceof Map heldByMap && heldByMap.get("@id") instanceof String heldById)
+            heldBy = heldById.substring(heldById.lastIndexOf('/') + 1);
+
+        // Non-null whenever the entity has an itemOf at all, as that is what makes it an item to the total sync.
+        String itemOf = null;
+        if (entity.get("itemOf") instanceof Map itemOfMap && itemOfMap.get("@id") instanceof String itemOfId)
+            itemOf = itemOfId;
+        else if (entity.get("itemOf") != null)
+            itemOf = "";
+
+        statement.setString(firstIndex, type);
+        statement.setString(firstIndex + 1, heldBy);
+        statement.setString(firstIndex + 2, itemOf);
+    }
+
+    /**
+     * Fill in the derived columns for rows written before these columns existed. This must be done before anything
+     * relies on them, and so blocks (for quite a while on a large state file) the first time a new version starts.
+     * Progress is committed as it goes, so it may be interrupted.
+     */
+    public static void backfillDerivedColumns(Connection connection) throws SQLException, IOException {
+        String backfilledToID = Storage.getState(DERIVED_COLUMNS_BACKFILLED_TO_ID_KEY, connection);
+        if (backfilledToID == null)
+            return;
+
+        Storage.log("Filling in derived columns for all stored entities. This may take a while.");
+        long backfilledTo = Long.parseLong(backfilledToID);
+        while (true) {
+            Map<Long, Map> batch = new LinkedHashMap<>();
+            try (PreparedStatement statement = connection.prepareStatement("SELECT id, entity FROM entities WHERE id > ? ORDER BY id LIMIT 1000")) {
+                statement.setLong(1, backfilledTo);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        batch.put(resultSet.getLong(1), EntityCodec.decode(resultSet.getBytes(2)));
+                    }
+                }
+            }
+            if (batch.isEmpty())
+                break;
+
+            PreparedStatement update = Storage.getCachedStatement("UPDATE entities SET type = ?, held_by = ?, item_of = ? WHERE id = ?", connection);
+            for (long id : batch.keySet()) {
+                setDerivedColumns(update, 1, batch.get(id));
+                update.setLong(4, id);
+                update.addBatch();
+                backfilledTo = id;
+            }
+            update.executeBatch();
+            Storage.writeState(DERIVED_COLUMNS_BACKFILLED_TO_ID_KEY, "" + backfilledTo, connection);
+            connection.commit();
+        }
+
+        Storage.clearState(DERIVED_COLUMNS_BACKFILLED_TO_ID_KEY, connection);
+        connection.commit();
+        Storage.log("Derived columns filled in (up to internal ID " + backfilledTo + ").");
+    }
+
     public static Set<String> collectUrisReferencedByThisRecord(Object node) {
         var result = new HashSet<String>();
 
@@ -106,53 +193,145 @@ public class Records {
     }
 
     public static void filterUrisWeAlreadyHave(Set<String> uris, Connection connection) throws SQLException {
-        var it = uris.iterator();
-        while (it.hasNext()) {
-            String dependencyToDownload = it.next();
-            try (PreparedStatement statement = connection.prepareStatement("SELECT id FROM entities WHERE uri = ?")) {
-                statement.setString(1, dependencyToDownload);
-                statement.execute();
-                try (ResultSet resultSet = statement.getResultSet()) {
-                    if (resultSet.next()) {
-                        it.remove();
+        // Most URIs we get asked about, we do not have. The filter tells us so without involving sqlite.
+        BloomFilter filter = getKnownUris(connection);
+        List<String> candidates = new ArrayList<>(uris.size());
+        for (String uri : uris) {
+            if (filter.mightContain(uri))
+                candidates.add(uri);
+        }
+
+        for (int i = 0; i < candidates.size(); i += maxUrisPerQuery) {
+            List<String> chunk = candidates.subList(i, Math.min(i + maxUrisPerQuery, candidates.size()));
+            String sql = "SELECT uri FROM entities WHERE uri IN (" + "?,".repeat(chunk.size() - 1) + "?)";
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (int j = 0; j < chunk.size(); ++j) {
+                    statement.setString(j + 1, chunk.get(j));
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        uris.remove(resultSet.getString(1));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * False means we definitely do not have an entity with this URI. True means we might.
+     */
+    public static boolean mightHaveUri(String uri, Connection connection) throws SQLException {
+        return getKnownUris(connection).mightContain(uri);
+    }
+
+    private static BloomFilter getKnownUris(Connection connection) throws SQLException {
+        BloomFilter filter = knownUris;
+        if (filter != null && !filter.isOverfilled())
+            return filter;
+
+        synchronized (Records.class) {
+            if (knownUris == null || knownUris.isOverfilled()) {
+                long start = System.currentTimeMillis();
+                long count = 0;
+                try (PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM entities")) {
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        if (resultSet.next())
+                            count = resultSet.getLong(1);
+                    }
+                }
+
+                // Leave plenty of room to grow, before this needs to be done again.
+                BloomFilter newFilter = new BloomFilter(Long.max(count * 2, 1_000_000));
+                try (PreparedStatement statement = connection.prepareStatement("SELECT uri FROM entities")) {
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            String uri = resultSet.getString(1);
+                            if (uri != null)
+                                newFilter.put(uri);
+                        }
                     }
                 }
+                knownUris = newFilter;
+                Storage.log("Built in-memory filter of " + count + " known entity URIs in " + (System.currentTimeMillis() - start) + " ms.");
             }
+            return knownUris;
         }
     }
 
-    public static void embellishWithLocalData(Object node, Set<String> cycleProtection, Connection connection) throws SQLException, IOException {
+    // The URIs of the links embedded on the way down to some node (innermost first). Shared, never copied, between
+    // all the nodes below.
+    private record Ancestors(String uri, Ancestors parent) {
+        boolean contains(String other) {
+            for (Ancestors a = this; a != null; a = a.parent) {
+                if (a.uri.equals(other))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private record PendingNode(Object node, Ancestors ancestors) {}
+
+    /**
+     * Replace all links (maps with nothing but an @id) under the given node, in the propertiesOfInterest, with the
+     * linked entity if we have it, recursively. A link is never replaced by an entity it is itself embedded in (but the
+     * same entity may well be embedded in several places).
+     *
+     * This is done one level of links at a time, so that all the entities needed for a level can be fetched together.
+     */
+    public static void embellishWithLocalData(Object node, Connection connection) throws SQLException, IOException {
+        List<PendingNode> level = new ArrayList<>();
+        level.add(new PendingNode(node, null));
+
+        while (!level.isEmpty()) {
+            // Find all links of this level
+            List<PendingNode> links = new ArrayList<>();
+            for (PendingNode pending : level) {
+                collectLinks(pending.node, pending.ancestors, pending.ancestors != null, links);
+            }
+
+            Set<String> uris = new HashSet<>();
+            for (PendingNode link : links) {
+                uris.add((String) ((Map) link.node).get("@id"));
+            }
+            Map<String, Map> entities = loadEntitiesByUri(uris, connection);
+
+            // Splice them in, and continue below them on the next level
+            List<PendingNode> nextLevel = new ArrayList<>();
+            Set<String> used = new HashSet<>();
+            for (PendingNode link : links) {
+                Map m = (Map) link.node;
+                String uri = (String) m.get("@id");
+                Map linkedEntity = entities.get(uri);
+                if (linkedEntity != null) {
+                    m.clear();
+                    // Every embedding gets its own copy, as these go on to be modified on the levels below.
+                    m.putAll(used.add(uri) ? linkedEntity : (Map) EntityCache.deepCopy(linkedEntity));
+                    nextLevel.add(new PendingNode(m, new Ancestors(uri, link.ancestors)));
+                }
+            }
+            level = nextLevel;
+        }
+    }
+
+    private static void collectLinks(Object node, Ancestors ancestors, boolean isLevelRoot, List<PendingNode> links) {
         switch (node) {
             case List l: {
                 for (Object o : l) {
-                    embellishWithLocalData(o, new HashSet<>(cycleProtection), connection);
+                    collectLinks(o, ancestors, false, links);
                 }
                 break;
             }
             case Map m: {
-                if (m.containsKey("@id") && m.size() == 1) {
-
-                    if (cycleProtection.contains( m.get("@id") ))
-                        return;
-                    cycleProtection.add((String) m.get("@id"));
-
-                    //Storage.log(" embedding (if exists): " + m.get("@id") + " cycleprot: " + cycleProtection);
-
-                    try (PreparedStatement statement = connection.prepareStatement("SELECT entity FROM entities WHERE uri = ?")) {
-                        statement.setString(1, (String) m.get("@id"));
-                        statement.execute();
-                        try (ResultSet resultSet = statement.getResultSet()) {
-                            if (resultSet.next()) {
-                                var linkedEntity = Storage.mapper.readValue(resultSet.getString(1), Map.class);
-                                m.clear();
-                                m.putAll(linkedEntity);
-                            }
-                        }
-                    }
+                // (An entity spliced in on the previous level is no longer a link, even if it looks like one)
+                if (!isLevelRoot && m.containsKey("@id") && m.size() == 1) {
+                    if (!(ancestors != null && ancestors.contains((String) m.get("@id"))))
+                        links.add(new PendingNode(m, ancestors));
+                    break;
                 }
                 for (Object k : m.keySet()) {
                     if (propertiesOfInterest.contains(k))
-                        embellishWithLocalData(m.get(k), new HashSet<>(cycleProtection), connection);
+                        collectLinks(m.get(k), ancestors, false, links);
                 }
                 break;
             }
@@ -162,59 +341,90 @@ public class Records {
         }
     }
 
-    public static List<Map> downloadDependencies(Set<String> urisToDownload, Set<String> cycleProtection, Connection connection) {
-        var result = new ArrayList<Map>();
+    /**
+     * Get the (parsed) entities with the given URIs, that we have. Those not in the entity cache are read in as few
+     * queries as possible. The returned maps belong to the caller, and may be modified.
+     */
+    public static Map<String, Map> loadEntitiesByUri(Collection<String> uris, Connection connection) throws SQLException, IOException {
+        Map<String, Map> result = new HashMap<>();
+        BloomFilter filter = getKnownUris(connection);
+        List<String> toRead = new ArrayList<>();
+        for (String uri : uris) {
+            if (!filter.mightContain(uri))
+                continue;
+            Map entity = EntityCache.getByUri(uri);
+            if (entity != null)
+                result.put(uri, entity);
+            else
+                toRead.add(uri);
+        }
 
-        String baseUrl = System.getenv("EMM_BASE_URL");
+        for (int i = 0; i < toRead.size(); i += maxUrisPerQuery) {
+            List<String> chunk = toRead.subList(i, Math.min(i + maxUrisPerQuery, toRead.size()));
+            String sql = "SELECT id, uri, entity FROM entities WHERE uri IN (" + "?,".repeat(chunk.size() - 1) + "?)";
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (int j = 0; j < chunk.size(); ++j) {
+                    statement.setString(j + 1, chunk.get(j));
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        long id = resultSet.getLong(1);
+                        String uri = resultSet.getString(2);
+                        Map entity = EntityCodec.decode(resultSet.getBytes(3));
+                        EntityCache.put(id, uri, entity);
+                        result.put(uri, entity);
+                    }
+                }
+            }
+        }
+        return result;
+    }
 
-        for (String uri : urisToDownload) {
+    /**
+     * Get the (parsed) entity with the given URI, or null if we do not have it. The returned map belongs to the
+     * caller, and may be modified.
+     */
+    public static Map loadEntityByUri(String uri, Connection connection) throws SQLException, IOException {
+        Map entity = EntityCache.getByUri(uri);
+        if (entity != null)
+            return entity;
 
-            // Don't reach to id.kb.se PROD even though that's what the links say. :( Kinda hacky!
-            if ( uri.startsWith("https://id.kb.se") ) {
-                if (baseUrl.startsWith("https://libris-qa.kb.se"))
-                    uri = uri.replace("https://id.kb.se", "https://id-qa.kb.se");
-                else if (baseUrl.startsWith("https://libris-dev.kb.se"))
-                    uri = uri.replace("https://id.kb.se", "https://id-dev.kb.se");
+        PreparedStatement statement = Storage.getCachedStatement("SELECT id, entity FROM entities WHERE uri = ?", connection);
+        statement.setString(1, uri);
+        try (ResultSet resultSet = statement.executeQuery()) {
+            if (resultSet.next()) {
+                long id = resultSet.getLong(1);
+                entity = EntityCodec.decode(resultSet.getBytes(2));
+                EntityCache.put(id, uri, entity);
             }
+        }
+        return entity;
+    }
 
-            if (cycleProtection.contains(uri))
-                continue;
-            cycleProtection.add(uri);
-
-            String response = downloadJsonLdWithRetry(uri);
-            if (response == null) {
-                Storage.log("WARNING: Was unable to download a dependency: " + uri + " which may now be missing in the synced data.");
-            } else {
-                try {
-                    Map dependency = Storage.mapper.readValue(response, Map.class);
-                    if (dependency.containsKey("@graph")) {
-                        List<Map> graphList = (List<Map>) dependency.get("@graph");
-
-                        Map recordEntity = graphList.get(0);
-                        Map mainEntity = graphList.get(1);
-                        if (recordEntity.containsKey("controlNumber")) {
-                            mainEntity.put( "meta", recordEntity );
-                        }
-                        result.add(mainEntity);
+    /**
+     * Get the (parsed) entity with the given ROWID, or null if we do not have it. The returned map belongs to the
+     * caller, and may be modified.
+     */
+    public static Map loadEntityById(long id, Connection connection) throws SQLException, IOException {
+        Map entity = EntityCache.getById(id);
+        if (entity != null)
+            return entity;
 
-                        Set<String> nextOrderDependencies = collectUrisReferencedByThisRecord(graphList.get(1));
-                        filterUrisWeAlreadyHave(nextOrderDependencies, connection);
-                        result.addAll( downloadDependencies(nextOrderDependencies, cycleProtection, connection) );
-                    }
-                } catch (IOException ioe) {
-                    Storage.log("Could not handle expected JSON from: " + uri + " [which looks like]: " + response, ioe);
-                } catch (SQLException se) {
-                    Storage.log("Failed to check for existence higher order dependencies.", se);
-                }
+        PreparedStatement statement = Storage.getCachedStatement("SELECT uri, entity FROM entities WHERE id = ?", connection);
+        statement.setLong(1, id);
+        try (ResultSet resultSet = statement.executeQuery()) {
+            if (resultSet.next()) {
+                String uri = resultSet.getString(1);
+                entity = EntityCodec.decode(resultSet.getBytes(2));
+                EntityCache.put(id, uri, entity);
             }
         }
-
-        return result;
+        return entity;
     }
 
     public static String downloadJsonLdWithRetry(String uri) {
         for (int i = 0; i < 5; ++i) {
-            try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+            try {
                 HttpGet request = new HttpGet(uri);
                 URI uriWithParam = new URIBuilder(request.getUri() )
                         .addParameter("computedLabel", "sv")
@@ -222,23 +432,21 @@ public class Records {
                         .addParameter("embellished", "false")
                         .build();
                 request.setUri(uriWithParam);
-                RequestConfig config = RequestConfig.custom()
-                        .setConnectionRequestTimeout(Timeout.ofSeconds(5)).setConnectionKeepAlive(TimeValue.ofSeconds(5)).build();
-                request.setConfig(config);
                 request.setHeader("accept", "application/json+ld");
-                ClassicHttpResponse response = httpClient.execute(request);
+                try (ClassicHttpResponse response = Http.getClient().execute(request)) {
 
-                boolean isJsonld = false;
-                for (Header header : response.getHeaders("Content-Type")) {
-                    if (header.getValue().contains("application/ld+json") || header.getValue().contains("application/json"))
-                        isJsonld = true;
-                }
+                    boolean isJsonld = false;
+                    for (Header header : response.getHeaders("Content-Type")) {
+                        if (header.getValue().contains("application/ld+json") || header.getValue().contains("application/json"))
+                            isJsonld = true;
+                    }
 
-                if (isJsonld)
-                    return EntityUtils.toString(response.getEntity());
-                else {
-                    Storage.log("Asked for JSONLD on " + uri + " but got other content-type anyway.");
-                    return null;
+                    if (isJsonld)
+                        return EntityUtils.toString(response.getEntity());
+                    else {
+                        Storage.log("Asked for JSONLD on " + uri + " but got other content-type anyway.");
+                        return null;
+                    }
                 }
 
             } catch (IOException | ParseException e) {
@@ -50,6 +50,7 @@ public class Server {
     private static boolean requestedClearChecksums = false;
     private static boolean requestedTotalFolioSync = false;
     private static boolean requestedCancelTotalFolioSync = false;
+    private static boolean requestedRetrainDictionary = false;
     private static boolean keepRunning = true;
     public static synchronized void requestChangedEmmTime(long newTime) {
         requestedNewEmmTime = newTime;
@@ -72,6 +73,9 @@ public class Server {
     public static synchronized void requestCancelTotalFolioSync() {
         requestedCancelTotalFolioSync = true;
     }
+    public static synchronized void requestRetrainDictionary() {
+        requestedRetrainDictionary = true;
+    }
     public static synchronized void requestShutdown() {
         keepRunning = false;
     }
@@ -84,6 +88,9 @@ public class Server {
     public static synchronized boolean getRequestedCancelTotalFolioSync() {
         return requestedCancelTotalFolioSync;
     }
+    public static synchronized boolean getRequestedRetrainDictionary() {
+        return requestedRetrainDictionary;
+    }
 
     public static void main(String[] args) throws Exception {
 
@@ -107,11 +114,15 @@ public class Server {
             } else {
                 Storage.log("Application starting in state: " + state);
             }
+            EntityCodec.loadDictionaries(connection);
             connection.commit();
         }
 
         server.start();
-        
+
+        // One-time upgrade of an existing state file (only does anything the first time a new version is started)
+        Records.backfillDerivedColumns(Storage.getConnection());
+
         // The main loop
         while (keepRunning) {
             try {
@@ -125,6 +136,7 @@ public class Server {
                     case STAYING_IN_SYNC: {
 
                         // synchronized with the requestChanged*Time-stuff above
+                        boolean retrainDictionary;
                         synchronized (Server.class) {
                             if (requestedNewEmmTime != 0) {
                                 Storage.writeState(EmmSync.SYNCED_UNTIL_KEY, "" + requestedNewEmmTime, connection);
@@ -153,6 +165,15 @@ public class Server {
                                 requestedCancelTotalFolioSync = false;
                                 Storage.log("FOLIO total sync manually cancelled.");
                             }
+                            retrainDictionary = requestedRetrainDictionary;
+                            requestedRetrainDictionary = false;
+                        }
+
+                        // Training takes a while, so not while holding up the GUI (waiting for the lock above).
+                        if (retrainDictionary) {
+                            EntityCodec.trainDictionary(connection);
+                            EntityMigration.restart(connection); // recompress everything with the new dictionary
+                            connection.commit();
                         }
 
                         boolean runAgainImmediately = false;
@@ -160,6 +181,7 @@ public class Server {
                         runAgainImmediately |= FolioSync.run();
                         runAgainImmediately |= FolioTotalSync.run();
                         runAgainImmediately |= LibrisWriteBack.run();
+                        runAgainImmediately |= EntityMigration.run();
                         if (!runAgainImmediately) {
                             Thread.sleep(100);
                         }
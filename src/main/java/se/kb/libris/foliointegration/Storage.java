@@ -7,9 +7,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.*;
 import java.time.ZonedDateTime;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.sqlite.SQLiteConfig;
@@ -31,6 +29,21 @@ public class Storage {
     private static final String APPLICATION_STATE_KEY = "ApplicationState";
 
     private static Connection _connection = null;
+    private static final ThreadLocal<Connection> readOnlyConnections = new ThreadLocal<>();
+
+    private static final Map<Connection, Map<String, PreparedStatement>> statementCache = new IdentityHashMap<>();
+
+    // Indexes (name -> definition) that are not needed during the initial load from Libris, and so are dropped
+    // for its duration (see enterBulkLoadMode).
+    private static final Map<String, String> deferrableIndexes = Map.of(
+            "idx_referenced_uris_entity_id", "referenced_uris(entity_id)",
+            "idx_entities_modified", "entities(modified)",
+            "idx_entities_item_of", "entities(id) WHERE item_of IS NOT NULL"
+    );
+
+    private static boolean bulkLoadMode = false;
+    private static final int defaultCacheSize = -2000; // sqlite default, negative means KiB
+    private static final int bulkLoadCacheSize = -256000;
 
     private static final LinkedList<String> circularLogBuffer = new LinkedList<>();
 
@@ -121,6 +134,9 @@ public class Storage {
                         uri TEXT,
                         entity BLOB,
                         modified INTEGER,
+                        type TEXT,
+                        held_by TEXT,
+                        item_of TEXT,
                         UNIQUE(uri)
                     );
                     """.stripIndent();
@@ -129,14 +145,26 @@ public class Storage {
             }
         }
         {
+            // Every URI referenced by any entity, once, so that referenced_uris can refer to them by integer ID.
             String sql = """
-                    CREATE TABLE referenced_uris (
+                    CREATE TABLE uris (
                           id INTEGER PRIMARY KEY,
-                          referenced_uri TEXT,
+                          uri TEXT UNIQUE
+                      );
+                    """.stripIndent();
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.execute();
+            }
+        }
+        {
+            // The primary key doubles as the index for "which entities refer to this URI?".
+            String sql = """
+                    CREATE TABLE referenced_uris (
+                          uri_id INTEGER,
                           entity_id INTEGER,
-                          UNIQUE(referenced_uri, entity_id),
+                          PRIMARY KEY(uri_id, entity_id),
                           FOREIGN KEY (entity_id) REFERENCES entities(id) ON DELETE CASCADE
-                      );
+                      ) WITHOUT ROWID;
                     """.stripIndent();
             try (PreparedStatement statement = connection.prepareStatement(sql)) {
                 statement.execute();
@@ -161,6 +189,8 @@ public class Storage {
                             entity_id INTEGER,
                             hrid TEXT,
                             checksum INTEGER,
+                            input_fingerprint INTEGER,
+                            structural_checksum BLOB,
                             UNIQUE(entity_id),
                             FOREIGN KEY (entity_id) REFERENCES entities(id) ON DELETE CASCADE
                         );
@@ -192,19 +222,28 @@ public class Storage {
             }
         }
         {
+            // Checksums of the parts of each exported record, see FolioSync.calculatePartChecksums
             String sql = """
-                    CREATE TABLE folio_events (
-                            id INTEGER PRIMARY KEY,
-                            value TEXT
-                        );
+                    CREATE TABLE exported_part_checksum (
+                            entity_id INTEGER,
+                            part TEXT,
+                            checksum BLOB,
+                            PRIMARY KEY(entity_id, part),
+                            FOREIGN KEY (entity_id) REFERENCES exported_checksum(entity_id) ON DELETE CASCADE
+                        ) WITHOUT ROWID;
                     """.stripIndent();
             try (PreparedStatement statement = connection.prepareStatement(sql)) {
                 statement.execute();
             }
         }
         {
+            // Compression dictionaries for entities.entity, the id is the zstd dictionary ID (see EntityCodec).
             String sql = """
-                    CREATE INDEX idx_referenced_uris_uri ON referenced_uris(referenced_uri);
+                    CREATE TABLE entity_dictionaries (
+                            id INTEGER PRIMARY KEY,
+                            dictionary BLOB,
+                            created TEXT
+                        );
                     """.stripIndent();
             try (PreparedStatement statement = connection.prepareStatement(sql)) {
                 statement.execute();
@@ -212,7 +251,10 @@ public class Storage {
         }
         {
             String sql = """
-                    CREATE INDEX idx_export_checksum_hrid ON exported_checksum(hrid);
+                    CREATE TABLE folio_events (
+                            id INTEGER PRIMARY KEY,
+                            value TEXT
+                        );
                     """.stripIndent();
             try (PreparedStatement statement = connection.prepareStatement(sql)) {
                 statement.execute();
@@ -220,15 +262,90 @@ public class Storage {
         }
         {
             String sql = """
-                    CREATE INDEX idx_referenced_uris_entity_id ON referenced_uris(entity_id);
+                    CREATE INDEX idx_export_checksum_hrid ON exported_checksum(hrid);
                     """.stripIndent();
             try (PreparedStatement statement = connection.prepareStatement(sql)) {
                 statement.execute();
             }
         }
+        createDeferrableIndexes(connection);
+    }
+
+    /**
+     * Changes to the schema of already existing state files.
+     */
+    private static synchronized void migrateDb(Connection connection) throws SQLException {
+        // entities.uri is already indexed through its UNIQUE constraint, this one was only a (costly) duplicate.
+        try (PreparedStatement statement = connection.prepareStatement("DROP INDEX IF EXISTS idx_entities_uri")) {
+            statement.execute();
+        }
+        // See FolioSync.calculateInputFingerprint
+        if (!hasColumn("exported_checksum", "input_fingerprint", connection)) {
+            try (PreparedStatement statement = connection.prepareStatement("ALTER TABLE exported_checksum ADD COLUMN input_fingerprint INTEGER")) {
+                statement.execute();
+            }
+        }
+        // See StructuralChecksum. Rows with only the older (checksum) column are converted as they are next compared.
+        if (!hasColumn("exported_checksum", "structural_checksum", connection)) {
+            try (PreparedStatement statement = connection.prepareStatement("ALTER TABLE exported_checksum ADD COLUMN structural_checksum BLOB")) {
+                statement.execute();
+            }
+        }
+
+        // referenced_uris used to hold the full URI text on every row, it now refers into the uris table.
+        if (!hasColumn("referenced_uris", "uri_id", connection)) {
+            log("Migrating referenced URIs to integer IDs. This may take a while.");
+            connection.setAutoCommit(false);
+            List<String> migration = List.of(
+                    "CREATE TABLE IF NOT EXISTS uris (id INTEGER PRIMARY KEY, uri TEXT UNIQUE)",
+                    "INSERT OR IGNORE INTO uris(uri) SELECT DISTINCT referenced_uri FROM referenced_uris ORDER BY referenced_uri",
+                    """
+                    CREATE TABLE referenced_uris_interned (
+                          uri_id INTEGER,
+                          entity_id INTEGER,
+                          PRIMARY KEY(uri_id, entity_id),
+                          FOREIGN KEY (entity_id) REFERENCES entities(id) ON DELETE CASCADE
+                      ) WITHOUT ROWID
+                    """,
+                    "INSERT OR IGNORE INTO referenced_uris_interned(uri_id, entity_id) SELECT uris.id, referenced_uris.entity_id FROM referenced_uris JOIN uris ON uris.uri = referenced_uris.referenced_uri ORDER BY 1, 2",
+                    "DROP TABLE referenced_uris",
+                    "ALTER TABLE referenced_uris_interned RENAME TO referenced_uris",
+                    "CREATE INDEX IF NOT EXISTS idx_referenced_uris_entity_id ON " + deferrableIndexes.get("idx_referenced_uris_entity_id")
+            );
+            for (String sql : migration) {
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    statement.execute();
+                }
+            }
+            connection.commit();
+            connection.setAutoCommit(true);
+            log("Referenced URIs migrated.");
+        }
+
+        // The derived columns of entities (see Records.setDerivedColumns), filled in for the existing rows by
+        // Records.backfillDerivedColumns. In one transaction, so that the columns never exist without the backfill
+        // having been asked for.
+        if (!hasColumn("entities", "item_of", connection)) {
+            connection.setAutoCommit(false);
+            for (String column : List.of("type", "held_by", "item_of")) {
+                try (PreparedStatement statement = connection.prepareStatement("ALTER TABLE entities ADD COLUMN " + column + " TEXT")) {
+                    statement.execute();
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement("CREATE INDEX IF NOT EXISTS idx_entities_item_of ON " + deferrableIndexes.get("idx_entities_item_of"))) {
+                statement.execute();
+            }
+            writeState(Records.DERIVED_COLUMNS_BACKFILLED_TO_ID_KEY, "0", connection);
+            connection.commit();
+            connection.setAutoCommit(true);
+        }
         {
             String sql = """
-                    CREATE INDEX idx_entities_modified ON entities(modified);
+                    CREATE TABLE IF NOT EXISTS entity_dictionaries (
+                            id INTEGER PRIMARY KEY,
+                            dictionary BLOB,
+                            created TEXT
+                        );
                     """.stripIndent();
             try (PreparedStatement statement = connection.prepareStatement(sql)) {
                 statement.execute();
@@ -236,7 +353,13 @@ public class Storage {
         }
         {
             String sql = """
-                    CREATE INDEX idx_entities_uri ON entities(uri);
+                    CREATE TABLE IF NOT EXISTS exported_part_checksum (
+                            entity_id INTEGER,
+                            part TEXT,
+                            checksum BLOB,
+                            PRIMARY KEY(entity_id, part),
+                            FOREIGN KEY (entity_id) REFERENCES exported_checksum(entity_id) ON DELETE CASCADE
+                        ) WITHOUT ROWID;
                     """.stripIndent();
             try (PreparedStatement statement = connection.prepareStatement(sql)) {
                 statement.execute();
@@ -244,6 +367,103 @@ public class Storage {
         }
     }
 
+    private static boolean hasColumn(String table, String column, Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("PRAGMA table_info(" + table + ")")) {
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    if (resultSet.getString("name").equals(column))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void createDeferrableIndexes(Connection connection) throws SQLException {
+        for (String indexName : deferrableIndexes.keySet()) {
+            String sql = "CREATE INDEX IF NOT EXISTS " + indexName + " ON " + deferrableIndexes.get(indexName);
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.execute();
+            }
+        }
+    }
+
+    /**
+     * Prepare the connection for the initial load from Libris. The secondary indexes are dropped (nothing reads
+     * through them before we are in sync), and foreign key checks are turned off. Any uncommitted changes on the
+     * connection are committed first.
+     *
+     * With foreign keys off, replaced entities leave their referenced_uris rows behind. These are cleaned out in
+     * rebuildAfterBulkLoad, together with the rebuilding of the indexes.
+     */
+    public static synchronized void enterBulkLoadMode(Connection connection) throws SQLException {
+        if (bulkLoadMode)
+            return;
+
+        connection.commit();
+        for (String indexName : deferrableIndexes.keySet()) {
+            try (PreparedStatement statement = connection.prepareStatement("DROP INDEX IF EXISTS " + indexName)) {
+                statement.execute();
+            }
+        }
+        connection.commit();
+
+        // Pragmas like these are silently ignored inside of a transaction.
+        connection.setAutoCommit(true);
+        try (PreparedStatement statement = connection.prepareStatement("PRAGMA foreign_keys = OFF")) {
+            statement.execute();
+        }
+        try (PreparedStatement statement = connection.prepareStatement("PRAGMA cache_size = " + bulkLoadCacheSize)) {
+            statement.execute();
+        }
+        connection.setAutoCommit(false);
+
+        bulkLoadMode = true;
+        log("Entered bulk load mode (secondary indexes and foreign key checks deferred).");
+    }
+
+    /**
+     * Remove what the bulk load left dangling and build the secondary indexes again, in one pass each. This does
+     * not commit, so that it can be committed together with the transition out of the initial load.
+     */
+    public static synchronized void rebuildAfterBulkLoad(Connection connection) throws SQLException {
+        log("Rebuilding indexes after bulk load. This may take a while.");
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM referenced_uris WHERE entity_id NOT IN (SELECT id FROM entities)")) {
+            statement.execute();
+        }
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM exported_checksum WHERE entity_id NOT IN (SELECT id FROM entities)")) {
+            statement.execute();
+        }
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM exported_part_checksum WHERE entity_id NOT IN (SELECT entity_id FROM exported_checksum)")) {
+            statement.execute();
+        }
+        createDeferrableIndexes(connection);
+        try (PreparedStatement statement = connection.prepareStatement("ANALYZE")) {
+            statement.execute();
+        }
+        log("Indexes rebuilt.");
+    }
+
+    /**
+     * Turn foreign key checks back on after the initial load. Must be called after committing.
+     */
+    public static synchronized void leaveBulkLoadMode(Connection connection) throws SQLException {
+        if (!bulkLoadMode)
+            return;
+
+        connection.setAutoCommit(true);
+        try (PreparedStatement statement = connection.prepareStatement("PRAGMA foreign_keys = ON")) {
+            statement.execute();
+        }
+        try (PreparedStatement statement = connection.prepareStatement("PRAGMA cache_size = " + defaultCacheSize)) {
+            statement.execute();
+        }
+        connection.setAutoCommit(false);
+
+        bulkLoadMode = false;
+        log("Left bulk load mode.");
+    }
+
     /**
      * Get the singular connection object. Issue DB writes only on the main thread, as concurrency in sqlite
      * is tricky and doubly so on top of "esoteric" storage solutions that may or may not respect locking.
@@ -252,10 +472,7 @@ public class Storage {
         if (_connection != null)
             return _connection;
 
-        String dbPath = "/data/libris.sqlite3"; // default, and typically in use when running in container
-        if (System.getProperty("DBPATH") != null)
-            dbPath = System.getProperty("DBPATH"); // For native running, allow this to be set (typically: -DDBPATH=/tmp)
-
+        String dbPath = getDbPath();
         boolean preExistingState = Files.exists(Path.of(dbPath));
 
         var url = "jdbc:sqlite:" + dbPath;
@@ -268,6 +485,8 @@ public class Storage {
 
             if (!preExistingState) {
                 initDb(_connection);
+            } else {
+                migrateDb(_connection);
             }
 
             _connection.setAutoCommit(false);
@@ -279,6 +498,43 @@ public class Storage {
         return null; // can't happen
     }
 
+    /**
+     * Get a read-only connection of the calling thread's own, that stays open for as long as the thread lives. This is
+     * for worker threads reading committed data, and MUST NOT ever issue writes (see getConnection).
+     */
+    public static Connection getReadOnlyConnection() throws SQLException {
+        Connection connection = readOnlyConnections.get();
+        if (connection == null) {
+            SQLiteConfig config = new SQLiteConfig();
+            config.setReadOnly(true);
+            connection = DriverManager.getConnection("jdbc:sqlite:" + getDbPath(), config.toProperties());
+            readOnlyConnections.set(connection);
+        }
+        return connection;
+    }
+
+    private static String getDbPath() {
+        String dbPath = "/data/libris.sqlite3"; // default, and typically in use when running in container
+        if (System.getProperty("DBPATH") != null)
+            dbPath = System.getProperty("DBPATH"); // For native running, allow this to be set (typically: -DDBPATH=/tmp)
+        return dbPath;
+    }
+
+    /**
+     * Get a prepared statement for the given sql, that is kept alive and reused for the lifetime of the connection.
+     * The returned statement must NOT be closed by the caller, and must not be used from more than one thread (which
+     * for the main connection means: use only on the main thread).
+     */
+    public static synchronized PreparedStatement getCachedStatement(String sql, Connection connection) throws SQLException {
+        Map<String, PreparedStatement> statements = statementCache.computeIfAbsent(connection, c -> new HashMap<>());
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
     public static synchronized void writeState(String key, String value, Connection connection) {
         String sql = """
                     INSERT OR REPLACE INTO state (key, value) VALUES(?, ?);
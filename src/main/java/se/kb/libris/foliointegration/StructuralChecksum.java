@@ -0,0 +1,230 @@
+package se.kb.libris.foliointegration;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A 128-bit checksum of a JSON-like structure (maps, lists, strings, numbers, booleans and nulls), used to tell if a
+ * formatted record differs from the one last written to FOLIO.
+ *
+ * The structure is fed through MurmurHash3 (x64, 128-bit) as a canonical serialization, one byte at a time, without
+ * building any intermediate strings: Every value is tagged with its type, strings, maps and lists are prefixed with
+ * their length, and map keys are visited in sorted order (so that key order does not matter, but everything else does).
+ * Properties named "modified" are left out, at any depth, as they change without anything visibly changing.
+ *
+ * Jackson trees are hashed directly, and give the same checksum as the equivalent maps and lists would.
+ */
+public class StructuralChecksum {
+    private static final long c1 = 0x87c37b91114253d5L;
+    private static final long c2 = 0x4cf5ad432745937fL;
+
+    private long h1 = 0;
+    private long h2 = 0;
+
+    // The current, not yet complete, 16 byte block (little endian)
+    private long k1 = 0;
+    private long k2 = 0;
+    private int blockPosition = 0;
+    private long length = 0;
+
+    public static byte[] of(Object node) {
+        StructuralChecksum checksum = new StructuralChecksum();
+        checksum.add(node);
+        return checksum.finish();
+    }
+
+    private void add(Object node) {
+        switch (node) {
+            case null -> addByte('N');
+            case String s -> {
+                addByte('S');
+                addString(s);
+            }
+            case Boolean b -> addByte(b ? 'T' : 'F');
+            case Integer i -> {
+                addByte('I');
+                addLong(i);
+            }
+            case Long l -> {
+                addByte('I');
+                addLong(l);
+            }
+            case Double d -> {
+                addByte('D');
+                addLong(Double.doubleToLongBits(d));
+            }
+            case JsonNode n -> addJsonNode(n);
+            case Map m -> {
+                Object[] keys = m.keySet().toArray();
+                Arrays.sort(keys, (a, b) -> String.valueOf(a).compareTo(String.valueOf(b)));
+                int relevantKeys = 0;
+                for (Object key : keys) {
+                    if (isRelevant(key))
+                        ++relevantKeys;
+                }
+                addByte('M');
+                addLong(relevantKeys);
+                for (Object key : keys) {
+                    if (!isRelevant(key))
+                        continue;
+                    addString(String.valueOf(key));
+                    add(m.get(key));
+                }
+            }
+            case List l -> {
+                addByte('L');
+                addLong(l.size());
+                for (Object element : l) {
+                    add(element);
+                }
+            }
+            default -> { // BigInteger, BigDecimal and the like
+                addByte('X');
+                addString(node.toString());
+            }
+        }
+    }
+
+    private void addJsonNode(JsonNode node) {
+        switch (node.getNodeType()) {
+            case STRING -> {
+                addByte('S');
+                addString(node.textValue());
+            }
+            case BOOLEAN -> addByte(node.booleanValue() ? 'T' : 'F');
+            case NUMBER -> {
+                if (node.isInt() || node.isLong() || node.isShort()) {
+                    addByte('I');
+                    addLong(node.longValue());
+                } else if (node.isBigInteger()) {
+                    addByte('X');
+                    addString(node.bigIntegerValue().toString());
+                } else {
+                    addByte('D');
+                    addLong(Double.doubleToLongBits(node.doubleValue()));
+                }
+            }
+            case OBJECT -> {
+                List<String> keys = new ArrayList<>(node.size());
+                for (Iterator<String> it = node.fieldNames(); it.hasNext(); ) {
+                    String key = it.next();
+                    if (isRelevant(key))
+                        keys.add(key);
+                }
+                keys.sort(null);
+                addByte('M');
+                addLong(keys.size());
+                for (String key : keys) {
+                    addString(key);
+                    addJsonNode(node.get(key));
+                }
+            }
+            case ARRAY -> {
+                addByte('L');
+                addLong(node.size());
+                for (JsonNode element : node) {
+                    addJsonNode(element);
+                }
+            }
+            case NULL, MISSING -> addByte('N');
+            default -> { // POJO and BINARY, not found in anything parsed or converted
+                addByte('X');
+                addString(node.toString());
+            }
+        }
+    }
+
+    private static boolean isRelevant(Object key) {
+        return !key.equals("modified"); // FILTER OTHER IRRELEVANT PROPERTIES HERE
+    }
+
+    private void addString(String s) {
+        addLong(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            addByte(c);
+            addByte(c >>> 8);
+        }
+    }
+
+    private void addLong(long value) {
+        for (int i = 0; i < 8; ++i) {
+            addByte((int) (value >>> (i * 8)));
+        }
+    }
+
+    private void addByte(int b) {
+        long value = b & 0xffL;
+        if (blockPosition < 8)
+            k1 |= value << (blockPosition * 8);
+        else
+            k2 |= value << ((blockPosition - 8) * 8);
+        ++length;
+
+        if (++blockPosition == 16) {
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+
+            k1 = 0;
+            k2 = 0;
+            blockPosition = 0;
+        }
+    }
+
+    private byte[] finish() {
+        // The tail (any bytes of an incomplete last block)
+        if (blockPosition > 8)
+            h2 ^= mixK2(k2);
+        if (blockPosition > 0)
+            h1 ^= mixK1(k1);
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] result = new byte[16];
+        for (int i = 0; i < 8; ++i) {
+            result[i] = (byte) (h1 >>> (i * 8));
+            result[i + 8] = (byte) (h2 >>> (i * 8));
+        }
+        return result;
+    }
+
+    private static long mixK1(long k) {
+        k *= c1;
+        k = Long.rotateLeft(k, 31);
+        return k * c2;
+    }
+
+    private static long mixK2(long k) {
+        k *= c2;
+        k = Long.rotateLeft(k, 33);
+        return k * c1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}